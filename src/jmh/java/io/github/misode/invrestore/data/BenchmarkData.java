@@ -0,0 +1,92 @@
+package io.github.misode.invrestore.data;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.NonNullList;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.core.component.DataComponents;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.Tag;
+import net.minecraft.network.chat.Component;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates synthetic snapshots for the benchmarks, without a running server.
+ */
+public class BenchmarkData {
+    private static final Item[] ITEMS = {
+            Items.DIAMOND_SWORD, Items.DIAMOND_PICKAXE, Items.COBBLESTONE, Items.TORCH, Items.COOKED_BEEF,
+            Items.OAK_LOG, Items.IRON_INGOT, Items.ENDER_PEARL, Items.SHULKER_BOX, Items.ARROW,
+    };
+    private static boolean bootstrapped = false;
+
+    public static synchronized void bootstrap() {
+        if (!bootstrapped) {
+            SharedConstants.tryDetectVersion();
+            Bootstrap.bootStrap();
+            bootstrapped = true;
+        }
+    }
+
+    public static RegistryOps<Tag> ops() {
+        return RegistryAccess.fromRegistryOfRegistries(BuiltInRegistries.REGISTRY).createSerializationContext(NbtOps.INSTANCE);
+    }
+
+    public static List<ItemStack> items(Random random, int size, float fill) {
+        List<ItemStack> items = NonNullList.withSize(size, ItemStack.EMPTY);
+        for (int i = 0; i < size; i += 1) {
+            if (random.nextFloat() < fill) {
+                ItemStack item = new ItemStack(ITEMS[random.nextInt(ITEMS.length)], 1 + random.nextInt(16));
+                if (random.nextInt(4) == 0) {
+                    item.set(DataComponents.CUSTOM_NAME, Component.literal("Item " + random.nextInt(100)));
+                }
+                items.set(i, item);
+            }
+        }
+        return items;
+    }
+
+    public static SnapshotItems snapshotItems(Random random) {
+        return new SnapshotItems(items(random, 36, 0.6f), items(random, 4, 0.75f), items(random, 1, 0.5f), items(random, 27, 0.4f));
+    }
+
+    public static List<UUID> players(int count) {
+        List<UUID> players = new ArrayList<>(count);
+        for (int i = 0; i < count; i += 1) {
+            players.add(new UUID(0L, i));
+        }
+        return players;
+    }
+
+    public static Snapshot snapshot(Random random, String id, UUID player, Instant time) {
+        return new Snapshot(id, Snapshot.JoinEvent.INSTANCE, player, "Player" + player.getLeastSignificantBits(), time,
+                Level.OVERWORLD, new Vec3(random.nextDouble() * 1000, 64, random.nextDouble() * 1000),
+                SnapshotContents.of(snapshotItems(random)));
+    }
+
+    /**
+     * Snapshots for {@code count / 20} players, in chronological order.
+     */
+    public static List<Snapshot> snapshots(int count) {
+        Random random = new Random(count);
+        List<UUID> players = players(Math.max(1, count / 20));
+        Instant start = Instant.parse("2025-01-01T00:00:00Z");
+        List<Snapshot> snapshots = new ArrayList<>(count);
+        for (int i = 0; i < count; i += 1) {
+            snapshots.add(snapshot(random, "S" + i, players.get(random.nextInt(players.size())), start.plusSeconds(i)));
+        }
+        return snapshots;
+    }
+}
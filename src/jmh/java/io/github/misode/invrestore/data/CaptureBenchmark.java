@@ -0,0 +1,52 @@
+package io.github.misode.invrestore.data;
+
+import net.minecraft.world.item.ItemStack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copying done by {@link SnapshotItems#fromPlayer} for the 36 inventory slots.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBenchmark {
+    private List<ItemStack> inventory;
+    private List<ItemStack> previous;
+    private SnapshotItems items;
+    private ItemStackPool pool;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.bootstrap();
+        Random random = new Random(0);
+        this.inventory = BenchmarkData.items(random, 36, 0.6f);
+        this.previous = SnapshotItems.copyItems(this.inventory, null);
+        this.items = BenchmarkData.snapshotItems(random);
+        this.pool = new ItemStackPool();
+        this.pool.intern(this.items);
+    }
+
+    @Benchmark
+    public List<ItemStack> copyAll() {
+        return SnapshotItems.copyItems(this.inventory, null);
+    }
+
+    @Benchmark
+    public List<ItemStack> copyUnchanged() {
+        return SnapshotItems.copyItems(this.inventory, this.previous);
+    }
+
+    @Benchmark
+    public SnapshotItems internAndRelease() {
+        SnapshotItems interned = this.pool.intern(this.items);
+        this.pool.release(interned);
+        return interned;
+    }
+}
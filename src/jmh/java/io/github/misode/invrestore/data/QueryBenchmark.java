@@ -0,0 +1,101 @@
+package io.github.misode.invrestore.data;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups done by the list command, the click handlers and tab-completion,
+ * plus inserting into a full database which triggers retention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int snapshotCount;
+
+    private SnapshotIndex index;
+    private InvRestoreDatabase database;
+    private List<Snapshot> snapshots;
+    private List<UUID> players;
+    private List<SnapshotItems> itemVariants;
+    private Random random;
+    private Instant time;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkData.bootstrap();
+        this.snapshots = BenchmarkData.snapshots(this.snapshotCount);
+        this.players = BenchmarkData.players(Math.max(1, this.snapshotCount / 20));
+        this.index = new SnapshotIndex();
+        this.snapshots.forEach(this.index::add);
+        Path directory = Files.createTempDirectory("invrestore-query");
+        this.database = new InvRestoreDatabase(directory);
+        this.snapshots.forEach(this.database::addSnapshot);
+        this.random = new Random(0);
+        this.itemVariants = new ArrayList<>();
+        for (int i = 0; i < 64; i += 1) {
+            this.itemVariants.add(BenchmarkData.snapshotItems(this.random));
+        }
+        this.time = Instant.parse("2030-01-01T00:00:00Z");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.database.close();
+    }
+
+    @Benchmark
+    public List<Snapshot> findNewest() {
+        Snapshot snapshot = this.snapshots.get(this.random.nextInt(this.snapshots.size()));
+        return this.index.findOlder(snapshot.playerName(), Optional.empty(), Optional.empty(), 5);
+    }
+
+    @Benchmark
+    public List<Snapshot> findOlderThanCursor() {
+        Snapshot snapshot = this.snapshots.get(this.random.nextInt(this.snapshots.size()));
+        return this.index.findOlder(snapshot.playerName(), Optional.empty(), Optional.of(SnapshotCursor.of(snapshot)), 5);
+    }
+
+    @Benchmark
+    public List<Snapshot> findOlderThanCursorByType() {
+        Snapshot snapshot = this.snapshots.get(this.random.nextInt(this.snapshots.size()));
+        return this.index.findOlder(snapshot.playerName(), Optional.of(Snapshot.Event.JOIN), Optional.of(SnapshotCursor.of(snapshot)), 5);
+    }
+
+    @Benchmark
+    public List<Snapshot> findNewerThanCursor() {
+        Snapshot snapshot = this.snapshots.get(this.random.nextInt(this.snapshots.size()));
+        return this.index.findNewer(snapshot.playerName(), Optional.empty(), SnapshotCursor.of(snapshot), 5);
+    }
+
+    @Benchmark
+    public Optional<Snapshot> findById() {
+        return this.index.get("S" + this.random.nextInt(this.snapshotCount));
+    }
+
+    @Benchmark
+    public List<String> playerNames() {
+        return List.copyOf(this.index.playerNames());
+    }
+
+    @Benchmark
+    public void insertWithRetention() {
+        this.counter += 1;
+        this.time = this.time.plusSeconds(1);
+        UUID player = this.players.get(this.random.nextInt(this.players.size()));
+        SnapshotItems items = this.itemVariants.get(this.counter % this.itemVariants.size());
+        Snapshot snapshot = this.snapshots.getFirst().withContents(SnapshotContents.of(items));
+        this.database.addSnapshot(new Snapshot("N" + this.counter, snapshot.event(), player, "Player" + player.getLeastSignificantBits(),
+                this.time, snapshot.dimension(), snapshot.position(), snapshot.contents()));
+    }
+}
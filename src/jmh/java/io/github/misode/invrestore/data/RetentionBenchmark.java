@@ -0,0 +1,92 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full pass of the store limits over a large database, like after loading
+ * or when the limits are changed. Once when every player is within the
+ * limits, and once when half of the snapshots have to be evicted.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RetentionBenchmark {
+    @Param({"10000", "100000"})
+    public int snapshotCount;
+
+    private List<Snapshot> snapshots;
+    private InvRestoreDatabase database;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkData.bootstrap();
+        this.snapshots = BenchmarkData.snapshots(this.snapshotCount);
+        this.database = fill(this.snapshots);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.database.close();
+        InvRestore.config = InvRestoreConfig.DEFAULT;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void enforceLimitsWithinLimits() {
+        InvRestore.config = config(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        this.database.enforceLimits();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void enforceLimitsEvicting(Overfull overfull) {
+        InvRestore.config = config(10, this.snapshotCount / 2);
+        overfull.database.enforceLimits();
+    }
+
+    @State(Scope.Thread)
+    public static class Overfull {
+        private InvRestoreDatabase database;
+
+        @Setup(Level.Invocation)
+        public void setup(RetentionBenchmark benchmark) throws Exception {
+            this.database = fill(benchmark.snapshots);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            this.database.close();
+        }
+    }
+
+    private static InvRestoreDatabase fill(List<Snapshot> snapshots) throws Exception {
+        InvRestore.config = config(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        InvRestoreDatabase database = new InvRestoreDatabase(Files.createTempDirectory("invrestore-retention"));
+        for (Snapshot snapshot : snapshots) {
+            // Each invocation needs its own copy, evicting detaches the contents
+            database.addSnapshot(snapshot.withContents(SnapshotContents.of(snapshot.contents().read())));
+        }
+        return database;
+    }
+
+    /** No pre-encoding or journal, the database isn't loaded with registries */
+    private static InvRestoreConfig config(int maxPerPlayer, int maxTotal) {
+        InvRestoreConfig defaults = InvRestoreConfig.DEFAULT;
+        InvRestoreConfig.Storage storage = defaults.storage();
+        return new InvRestoreConfig(defaults.queryResults(), new InvRestoreConfig.StoreLimits(maxPerPlayer, maxTotal),
+                defaults.deduplication(),
+                new InvRestoreConfig.Storage(storage.backend(), InvRestoreConfig.Format.NBT, storage.compression(), storage.zstdDictionary(),
+                        storage.deltaEncoding(), storage.keyframeInterval(), storage.archiveAfterDays()),
+                defaults.loading(), new InvRestoreConfig.Journal(false, defaults.journal().flushIntervalMillis()),
+                defaults.ingestion(), defaults.cache(), defaults.autoSave(), defaults.metrics());
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Encoding and decoding the whole history through the segment files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int snapshotCount;
+
+    @Param({"nbt", "binary"})
+    public String format;
+
+    @Param({"gzip", "lz4", "zstd"})
+    public String compression;
+
+    /** Threads used to decode segments, 0 uses all processors */
+    @Param({"1", "0"})
+    public int parallelism;
+
+    private InvRestoreConfig.Storage storage;
+    private InvRestoreConfig.Loading loading;
+    private RegistryOps<Tag> ops;
+    private List<Snapshot> snapshots;
+    private Path encodeDirectory;
+    private Path decodeDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkData.bootstrap();
+        this.ops = BenchmarkData.ops();
+        this.snapshots = BenchmarkData.snapshots(this.snapshotCount);
+        InvRestoreConfig.Storage defaults = InvRestoreConfig.Storage.DEFAULT;
+        this.storage = new InvRestoreConfig.Storage(defaults.backend(), InvRestoreConfig.Format.valueOf(this.format.toUpperCase(Locale.ROOT)),
+                InvRestoreConfig.Compression.valueOf(this.compression.toUpperCase(Locale.ROOT)), defaults.zstdDictionary(),
+                defaults.deltaEncoding(), defaults.keyframeInterval(), defaults.archiveAfterDays());
+        this.loading = new InvRestoreConfig.Loading(this.parallelism, 0);
+        this.decodeDirectory = Files.createTempDirectory("invrestore-decode");
+        new SnapshotSegments(this.decodeDirectory).write(this.snapshots, List.of(), this.ops, this.storage);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        this.encodeDirectory = Files.createTempDirectory("invrestore-encode");
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws IOException {
+        delete(this.encodeDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        delete(this.decodeDirectory);
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        new SnapshotSegments(this.encodeDirectory).write(this.snapshots, List.of(), this.ops, this.storage);
+    }
+
+    @Benchmark
+    public List<Snapshot> decodeHeaders() throws IOException {
+        return new SnapshotSegments(this.decodeDirectory).load(this.ops, this.loading);
+    }
+
+    @Benchmark
+    public List<Snapshot> decodeAll() throws IOException {
+        List<Snapshot> snapshots = new SnapshotSegments(this.decodeDirectory).load(this.ops, this.loading);
+        snapshots.forEach(s -> s.contents().get());
+        return snapshots;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
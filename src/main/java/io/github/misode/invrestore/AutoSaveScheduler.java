@@ -0,0 +1,53 @@
+package io.github.misode.invrestore;
+
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.data.Snapshot;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+
+/**
+ * Takes auto-save snapshots of all online players at a fixed interval. Each
+ * round is spread over multiple ticks, slows down when the server gets close
+ * to its tick time budget and pauses entirely while it is over the budget.
+ */
+public class AutoSaveScheduler {
+    private final Deque<UUID> pending = new ArrayDeque<>();
+    private int ticksSinceRound = 0;
+
+    public void tick(MinecraftServer server) {
+        InvRestoreConfig.AutoSave config = InvRestore.config.autoSave();
+        if (config.intervalMinutes() <= 0) {
+            this.pending.clear();
+            this.ticksSinceRound = 0;
+            return;
+        }
+        if (this.pending.isEmpty()) {
+            if (++this.ticksSinceRound < config.intervalMinutes() * 60 * 20) {
+                return;
+            }
+            this.ticksSinceRound = 0;
+            server.getPlayerList().getPlayers().forEach(player -> this.pending.add(player.getUUID()));
+        }
+
+        double mspt = server.getAverageTickTimeNanos() / 1_000_000.0;
+        if (mspt > config.msptBudget()) {
+            InvRestoreMetrics.AUTO_SAVE_DEFERRED.incrementAndGet();
+            return;
+        }
+        int budget = mspt > config.msptBudget() * 0.75 ? 1 : config.playersPerTick();
+        int captured = 0;
+        while (captured < budget && !this.pending.isEmpty()) {
+            ServerPlayer player = server.getPlayerList().getPlayer(this.pending.poll());
+            if (player == null) {
+                continue;
+            }
+            captured += 1;
+            InvRestore.captureSnapshot(player, Snapshot.AutoSaveEvent.INSTANCE);
+        }
+    }
+}
@@ -3,17 +3,22 @@ package io.github.misode.invrestore;
 import io.github.misode.invrestore.commands.InvRestoreCommand;
 import io.github.misode.invrestore.config.InvRestoreConfig;
 import io.github.misode.invrestore.data.InvRestoreDatabase;
+import io.github.misode.invrestore.data.InventoryFingerprint;
 import io.github.misode.invrestore.data.PlayerPreferences;
 import io.github.misode.invrestore.data.Snapshot;
+import io.github.misode.invrestore.data.SnapshotCursor;
+import io.github.misode.invrestore.data.SnapshotIndex;
+import io.github.misode.invrestore.data.SnapshotIngestQueue;
+import io.github.misode.invrestore.data.SnapshotItems;
 import io.github.misode.invrestore.gui.SnapshotGui;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.entity.event.v1.ServerEntityWorldChangeEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
-import net.minecraft.core.BlockPos;
 import net.minecraft.core.Holder;
-import net.minecraft.core.component.DataComponents;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.IntTag;
 import net.minecraft.nbt.StringTag;
@@ -25,19 +30,12 @@ import net.minecraft.network.chat.Style;
 import net.minecraft.resources.Identifier;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
-import net.minecraft.world.item.ItemStack;
-import net.minecraft.world.item.Items;
-import net.minecraft.world.item.component.BundleContents;
-import net.minecraft.world.item.component.ItemLore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.stream.Stream;
 
 public class InvRestore implements ModInitializer {
     public static final String MOD_ID = "invrestore";
@@ -49,6 +47,8 @@ public class InvRestore implements ModInitializer {
 
     private static InvRestoreDatabase database;
     public static InvRestoreConfig config = InvRestoreConfig.DEFAULT;
+    private static int ticksSinceStatsLog = 0;
+    private static final AutoSaveScheduler autoSave = new AutoSaveScheduler();
 
     @Override
     public void onInitialize() {
@@ -74,14 +74,38 @@ public class InvRestore implements ModInitializer {
                 LOGGER.error("Failed to save database", e);
             }
         });
+        ServerLifecycleEvents.SERVER_STOPPED.register((server) -> {
+            if (database == null) {
+                return;
+            }
+            try {
+                database.save(server);
+                database.close();
+            } catch (Exception e) {
+                LOGGER.error("Failed to flush database", e);
+            }
+            database = null;
+        });
+        ServerTickEvents.END_SERVER_TICK.register((server) -> {
+            if (database != null) {
+                database.mergeRemaining();
+                database.drainIngestQueue();
+                autoSave.tick(server);
+            }
+            int interval = InvRestore.config.metrics().logIntervalMinutes() * 60 * 20;
+            if (interval > 0 && ++ticksSinceStatsLog >= interval) {
+                ticksSinceStatsLog = 0;
+                LOGGER.info("Stats: {}", String.join(", ", formatStats()));
+            }
+        });
         ServerPlayConnectionEvents.JOIN.register((listener, sender, server) -> {
-            addSnapshot(Snapshot.fromJoin(listener.player));
+            captureSnapshot(listener.player, Snapshot.JoinEvent.INSTANCE);
         });
         ServerPlayConnectionEvents.DISCONNECT.register((listener, server) -> {
-            addSnapshot(Snapshot.fromDisconnect(listener.player));
+            captureSnapshot(listener.player, Snapshot.DisconnectEvent.INSTANCE);
         });
         ServerEntityWorldChangeEvents.AFTER_PLAYER_CHANGE_WORLD.register((player, origin, destination) -> {
-            addSnapshot(Snapshot.fromLevelChange(player, origin.dimension()));
+            captureSnapshot(player, Snapshot.levelChangeEvent(player, origin.dimension()));
         });
     }
 
@@ -101,25 +125,46 @@ public class InvRestore implements ModInitializer {
             throw new IllegalStateException("The database isn't loaded");
         }
         PlayerPreferences oldPreferences = getPlayerPreferences(player);
-        database.preferences().put(player.getUUID(), update.apply(oldPreferences));
+        database.updatePreferences(player.getUUID(), update.apply(oldPreferences));
+    }
+
+    public static int sendSnapshotList(ServerPlayer receiver, String playerName, Optional<Snapshot.EventType<?>> eventType) {
+        return sendSnapshotList(receiver, playerName, eventType, 1, Optional.empty(), false);
+    }
+
+    /**
+     * Sends the page of snapshots directly older than the cursor, or directly
+     * newer when going back. The page number is only used for display.
+     */
+    public static int sendSnapshotList(ServerPlayer receiver, String playerName, Optional<Snapshot.EventType<?>> eventType, int page, Optional<SnapshotCursor> cursor, boolean newer) {
+        long start = InvRestoreMetrics.QUERY.start();
+        try {
+            return InvRestore.buildSnapshotList(receiver, playerName, eventType, page, cursor, newer);
+        } finally {
+            InvRestoreMetrics.QUERY.stop(start);
+        }
     }
 
-    public static int sendSnapshotList(ServerPlayer receiver, String playerName, Optional<Snapshot.EventType<?>> eventType, int page) {
+    private static int buildSnapshotList(ServerPlayer receiver, String playerName, Optional<Snapshot.EventType<?>> eventType, int page, Optional<SnapshotCursor> cursor, boolean newer) {
         InvRestoreConfig.QueryResults config = InvRestore.config.queryResults();
-        int startIndex = (page - 1) * config.maxResults();
-        if (startIndex < 0) {
+        if (database == null) {
             return 0;
         }
 
-        List<Snapshot> snapshots = InvRestore
-                .findSnapshots(s -> s.playerName().equals(playerName) && (eventType.isEmpty() || s.event().getType().equals(eventType.get())));
+        SnapshotIndex index = database.index();
+        int total = index.count(playerName, eventType);
+        List<Snapshot> snapshots = newer && cursor.isPresent()
+                ? index.findNewer(playerName, eventType, cursor.get(), config.maxResults())
+                : index.findOlder(playerName, eventType, cursor, config.maxResults());
         if (snapshots.isEmpty()) {
             return 0;
         }
-
-        int endIndex = Math.min(startIndex + config.maxResults(), snapshots.size());
-        if (endIndex <= startIndex) {
-            return 0;
+        SnapshotCursor first = SnapshotCursor.of(snapshots.getFirst());
+        SnapshotCursor last = SnapshotCursor.of(snapshots.getLast());
+        boolean hasNewer = !index.findNewer(playerName, eventType, first, 1).isEmpty();
+        boolean hasOlder = !index.findOlder(playerName, eventType, Optional.of(last), 1).isEmpty();
+        if (!hasNewer) {
+            page = 1;
         }
 
         receiver.sendSystemMessage(Component.empty()
@@ -127,71 +172,28 @@ public class InvRestore implements ModInitializer {
                 .append(Component.literal(playerName).withStyle(Styles.HEADER_HIGHLIGHT))
                 .append(" ---").withStyle(Styles.HEADER_DEFAULT));
 
-        snapshots.subList(startIndex, endIndex).forEach(snapshot -> {
-            ZoneId zone = InvRestore.getPlayerPreferences(receiver).timezone().orElse(config.defaultZone());
-            DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern(config.fullTimeFormat()).withZone(zone).withLocale(Locale.ROOT);
-            String changeTimezoneCommand = "/invrestore timezone ";
-            Component time = Component.literal(snapshot.formatTimeAgo()).withStyle(Styles.LIST_DEFAULT
-                    .withHoverEvent(new HoverEvent.ShowText(Component.empty()
-                            .append(Component.literal(timeFormat.format(snapshot.time())).withStyle(Styles.LIST_HIGHLIGHT))
-                            .append(Component.literal("\n(click to change timezone)").withStyle(Styles.LIST_DEFAULT))))
-                    .withClickEvent(new ClickEvent.SuggestCommand(changeTimezoneCommand))
-            );
-
-            String tellPlayerCommand = "/tell " + snapshot.playerName() + " ";
-            Component player = Component.literal(snapshot.playerName()).withStyle(Styles.LIST_HIGHLIGHT
-                    .withClickEvent(new ClickEvent.SuggestCommand(tellPlayerCommand))
-            );
+        ZoneId zone = InvRestore.getPlayerPreferences(receiver).timezone().orElse(config.defaultZone());
+        snapshots.forEach(snapshot -> receiver.sendSystemMessage(SnapshotListRows.format(snapshot, config.fullTimeFormat(), zone)));
 
-            Component verb = snapshot.event().formatVerb().withStyle(Styles.LIST_DEFAULT);
-
-            ItemStack hoverItem = Items.BUNDLE.getDefaultInstance();
-            hoverItem.set(DataComponents.ITEM_NAME, Component.literal("Inventory Preview").withStyle(Styles.LIST_HIGHLIGHT));
-            hoverItem.set(DataComponents.LORE, new ItemLore(List.of(Component.literal("(click to view)")
-                    .withStyle(Styles.LIST_DEFAULT.withItalic(false))
-            )));
-            hoverItem.set(DataComponents.BUNDLE_CONTENTS, new BundleContents(snapshot.contents().inventoryItems().toList()));
-            CompoundTag snapshotPayload = new CompoundTag();
-            snapshotPayload.put("id", StringTag.valueOf(snapshot.id()));
-            Component items = Component.literal("(" + snapshot.contents().stackCount() + " stacks)").withStyle(Styles.LIST_HIGHLIGHT
-                    .withHoverEvent(new HoverEvent.ShowItem(hoverItem))
-                    .withClickEvent(new ClickEvent.Custom(InvRestore.VIEW_ACTION, Optional.of(snapshotPayload))));
-
-            BlockPos pos = BlockPos.containing(snapshot.position());
-            String posFormat = pos.getX() + " " + pos.getY() + " " + pos.getZ();
-            Component position = Component.literal(posFormat).withStyle(Styles.LIST_DEFAULT
-                    .withHoverEvent(new HoverEvent.ShowText(Component.empty()
-                            .append(Component.literal(snapshot.formatPos()).withStyle(Styles.LIST_HIGHLIGHT))
-                            .append(Component.literal("\n" + snapshot.dimension().identifier()).withStyle(Styles.LIST_DEFAULT))
-                            .append(Component.literal("\n(click to teleport)").withStyle(Styles.LIST_DEFAULT))))
-                    .withClickEvent(new ClickEvent.Custom(InvRestore.TELEPORT_ACTION, Optional.of(snapshotPayload))));
-
-            receiver.sendSystemMessage(Component.empty()
-                    .append(snapshot.event().formatEmoji(false))
-                    .append(" ").append(time)
-                    .append(" ").append(player)
-                    .append(" ").append(verb)
-                    .append(" ").append(items)
-                    .append(" ").append(position));
-        });
-
-        int maxPage = Math.ceilDiv(snapshots.size(), config.maxResults());
+        int maxPage = Math.max(page, Math.ceilDiv(total, config.maxResults()));
         CompoundTag pagePayload = new CompoundTag();
         pagePayload.put("player_name", StringTag.valueOf(playerName));
         eventType.ifPresent(type -> pagePayload.put("event_type",
                 StringTag.valueOf(Objects.requireNonNull(Snapshot.EventType.REGISTRY.getKey(type)).toString())));
         CompoundTag prevPagePayload = pagePayload.copy();
         prevPagePayload.put("page", IntTag.valueOf(page - 1));
+        prevPagePayload.put("newer_than", StringTag.valueOf(first.encode()));
         CompoundTag nextPagePayload = pagePayload.copy();
         nextPagePayload.put("page", IntTag.valueOf(page + 1));
+        nextPagePayload.put("older_than", StringTag.valueOf(last.encode()));
         Style prevButtonStyle = Styles.HEADER_HIGHLIGHT;
-        if (page > 1) {
+        if (hasNewer) {
             prevButtonStyle = prevButtonStyle
                     .withHoverEvent(new HoverEvent.ShowText(Component.literal("(previous page)").withStyle(Styles.LIST_DEFAULT)))
                     .withClickEvent(new ClickEvent.Custom(InvRestore.CHANGE_PAGE_ACTION, Optional.of(prevPagePayload)));
         }
         Style nextButtonStyle = Styles.HEADER_HIGHLIGHT;
-        if (page < maxPage) {
+        if (hasOlder) {
             nextButtonStyle = nextButtonStyle
                     .withHoverEvent(new HoverEvent.ShowText(Component.literal("(next page)").withStyle(Styles.LIST_DEFAULT)))
                     .withClickEvent(new ClickEvent.Custom(InvRestore.CHANGE_PAGE_ACTION, Optional.of(nextPagePayload)));
@@ -203,7 +205,7 @@ public class InvRestore implements ModInitializer {
                 .append(Component.literal(" >> ").withStyle(nextButtonStyle))
                 .append("------").withStyle(Styles.HEADER_DEFAULT));
 
-        return snapshots.size();
+        return total;
     }
 
     public static void handleCustomClickAction(ServerPlayer player, Identifier id, Optional<Tag> payload) {
@@ -216,19 +218,23 @@ public class InvRestore implements ModInitializer {
                                 .flatMap(e -> Snapshot.EventType.REGISTRY.get(Identifier.parse(e)))
                                 .map(Holder.Reference::value);
                         Optional<Integer> page = tag.getInt("page");
+                        Optional<SnapshotCursor> olderThan = tag.getString("older_than").flatMap(SnapshotCursor::decode);
+                        Optional<SnapshotCursor> newerThan = tag.getString("newer_than").flatMap(SnapshotCursor::decode);
                         if (playerName.isEmpty() || page.isEmpty()) {
                             return;
                         }
-                        sendSnapshotList(player, playerName.get(), eventType, page.get());
+                        if (newerThan.isPresent()) {
+                            sendSnapshotList(player, playerName.get(), eventType, Math.max(1, page.get()), newerThan, true);
+                        } else {
+                            sendSnapshotList(player, playerName.get(), eventType, Math.max(1, page.get()), olderThan, false);
+                        }
                     });
             return;
         }
         payload
                 .flatMap(Tag::asCompound)
                 .flatMap(c -> c.getString("id"))
-                .flatMap(string -> InvRestore
-                        .findSnapshots(s -> s.id().equals(string))
-                        .stream().findAny())
+                .flatMap(InvRestore::findSnapshot)
                 .ifPresent(snapshot -> {
                     if (id.equals(InvRestore.VIEW_ACTION)) {
                         try {
@@ -246,42 +252,81 @@ public class InvRestore implements ModInitializer {
                 });
     }
 
-    private static Stream<Snapshot> getSnapshots() {
-        if (database == null) {
-            return Stream.of();
-        }
-        return database.snapshots().stream();
-    }
-
-    public static void addSnapshot(Snapshot snapshot) {
+    /**
+     * Captures a snapshot of the player and queues it for the database, which
+     * adds it at the end of the tick. When none of the player's containers
+     * were modified since their latest snapshot and the event type is
+     * configured to skip those, nothing is captured at all.
+     */
+    public static void captureSnapshot(ServerPlayer player, Snapshot.Event event) {
         try {
             if (database == null) {
                 throw new IllegalStateException("The database isn't loaded");
             }
-            database.snapshots().add(snapshot);
+            long modification = InventoryFingerprint.modification(player);
+            OptionalLong latestFingerprint = database.findFingerprint(player.getUUID(), modification);
+            InvRestoreConfig.Deduplication.Mode mode = config.deduplication().mode(event.getType());
+            if (latestFingerprint.isPresent() && mode == InvRestoreConfig.Deduplication.Mode.SKIP) {
+                InvRestoreMetrics.DEDUPLICATED.incrementAndGet();
+                return;
+            }
+            long fingerprint = latestFingerprint.orElseGet(() -> InventoryFingerprint.of(player));
+            Snapshot snapshot = Snapshot.create(player, event);
+            if (!database.submit(SnapshotIngestQueue.Request.of(snapshot, modification, fingerprint, mode))) {
+                LOGGER.warn("Dropped snapshot {} for player {}, the ingest queue is full", event, player.getGameProfile().name());
+            }
         } catch (Exception e) {
-            LOGGER.error("Couldn't save snapshot {} for player {}", snapshot.event(), snapshot.playerName(), e);
+            LOGGER.error("Couldn't save snapshot {} for player {}", event, player.getGameProfile().name(), e);
         }
     }
 
+    public static List<String> formatStats() {
+        return InvRestoreMetrics.format(database);
+    }
+
+    public static void enforceStoreLimits() {
+        if (database != null) {
+            database.enforceLimits();
+        }
+    }
+
+    /**
+     * The items of a snapshot, items that aren't decoded yet go through the cache.
+     */
+    public static SnapshotItems getItems(Snapshot snapshot) {
+        if (database == null) {
+            return snapshot.contents().get();
+        }
+        return database.itemsCache().get(snapshot);
+    }
+
     public static List<String> getPlayerNames() {
-        return getSnapshots()
-                .sorted()
-                .map(Snapshot::playerName)
-                .distinct()
-                .toList();
+        if (database == null) {
+            return List.of();
+        }
+        return List.copyOf(database.index().playerNames());
+    }
+
+    public static Optional<Snapshot> findSnapshot(String id) {
+        if (database == null) {
+            return Optional.empty();
+        }
+        return database.index().get(id);
     }
 
-    public static List<Snapshot> findSnapshots(Predicate<Snapshot> predicate) {
-        return getSnapshots()
-                .filter(predicate)
-                .sorted()
-                .toList();
+    /** Can be called from any thread, see {@link InvRestoreDatabase#findLatestItems} */
+    public static Optional<SnapshotItems> findLatestItems(UUID playerUuid) {
+        InvRestoreDatabase database = InvRestore.database;
+        if (database == null) {
+            return Optional.empty();
+        }
+        return database.findLatestItems(playerUuid);
     }
 
     public static List<String> getAllIds() {
-        return getSnapshots()
-                .map(Snapshot::id)
-                .toList();
+        if (database == null) {
+            return List.of();
+        }
+        return List.copyOf(database.index().ids());
     }
 }
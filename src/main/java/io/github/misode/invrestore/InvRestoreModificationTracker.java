@@ -0,0 +1,20 @@
+package io.github.misode.invrestore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Containers that remember when they were last modified. Stamps come from a
+ * single global counter, so a new container never reports the same stamp as
+ * one it replaced and the newest stamp of a group changes whenever any of
+ * them is modified.
+ */
+public interface InvRestoreModificationTracker {
+    AtomicLong COUNTER = new AtomicLong();
+
+    static long nextModification() {
+        return COUNTER.incrementAndGet();
+    }
+
+    long inv_restore$getModification();
+    void inv_restore$markModified();
+}
@@ -0,0 +1,108 @@
+package io.github.misode.invrestore;
+
+import io.github.misode.invrestore.data.Snapshot;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.component.DataComponents;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.network.chat.ClickEvent;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.HoverEvent;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.item.component.BundleContents;
+import net.minecraft.world.item.component.ItemLore;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rows of the snapshot list. The parts that only depend on the snapshot
+ * header are built once and reused when the list is sent again. The relative
+ * time, its hover in the receiver's timezone and the inventory preview are
+ * created for every message, so the cached rows never hold decoded items.
+ */
+public class SnapshotListRows {
+    private static final int MAX_CACHED_ROWS = 512;
+    private static final Map<String, Row> ROWS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Row> eldest) {
+            return this.size() > MAX_CACHED_ROWS;
+        }
+    };
+    private static final Map<FormatterKey, DateTimeFormatter> FORMATTERS = new ConcurrentHashMap<>();
+    private static final Component CHANGE_TIMEZONE_HINT = Component.literal("\n(click to change timezone)").withStyle(Styles.LIST_DEFAULT);
+    private static final ClickEvent CHANGE_TIMEZONE_CLICK = new ClickEvent.SuggestCommand("/invrestore timezone ");
+
+    public static Component format(Snapshot snapshot, String fullTimeFormat, ZoneId zone) {
+        Row row;
+        synchronized (ROWS) {
+            row = ROWS.computeIfAbsent(snapshot.id(), id -> Row.create(snapshot));
+        }
+        Component time = Component.literal(snapshot.formatTimeAgo()).withStyle(Styles.LIST_DEFAULT
+                .withHoverEvent(new HoverEvent.ShowText(Component.empty()
+                        .append(Component.literal(formatter(fullTimeFormat, zone).format(snapshot.time())).withStyle(Styles.LIST_HIGHLIGHT))
+                        .append(CHANGE_TIMEZONE_HINT)))
+                .withClickEvent(CHANGE_TIMEZONE_CLICK)
+        );
+        return Component.empty()
+                .append(row.emoji)
+                .append(" ").append(time)
+                .append(" ").append(row.player)
+                .append(" ").append(items(snapshot, row.payload))
+                .append(" ").append(row.position);
+    }
+
+    /** Reads the items through the cache, offloaded snapshots aren't kept decoded */
+    private static Component items(Snapshot snapshot, CompoundTag payload) {
+        ItemStack hoverItem = Items.BUNDLE.getDefaultInstance();
+        hoverItem.set(DataComponents.ITEM_NAME, Component.literal("Inventory Preview").withStyle(Styles.LIST_HIGHLIGHT));
+        hoverItem.set(DataComponents.LORE, new ItemLore(List.of(Component.literal("(click to view)")
+                .withStyle(Styles.LIST_DEFAULT.withItalic(false))
+        )));
+        hoverItem.set(DataComponents.BUNDLE_CONTENTS, new BundleContents(InvRestore.getItems(snapshot).inventoryItems().toList()));
+        return Component.literal("(" + snapshot.contents().stackCount() + " stacks)").withStyle(Styles.LIST_HIGHLIGHT
+                .withHoverEvent(new HoverEvent.ShowItem(hoverItem))
+                .withClickEvent(new ClickEvent.Custom(InvRestore.VIEW_ACTION, Optional.of(payload))));
+    }
+
+    private static DateTimeFormatter formatter(String pattern, ZoneId zone) {
+        return FORMATTERS.computeIfAbsent(new FormatterKey(pattern, zone),
+                key -> DateTimeFormatter.ofPattern(key.pattern).withZone(key.zone).withLocale(Locale.ROOT));
+    }
+
+    private record FormatterKey(String pattern, ZoneId zone) {}
+
+    private record Row(Component emoji, Component player, CompoundTag payload, Component position) {
+        private static Row create(Snapshot snapshot) {
+            String tellPlayerCommand = "/tell " + snapshot.playerName() + " ";
+            Component player = Component.literal(snapshot.playerName()).withStyle(Styles.LIST_HIGHLIGHT
+                    .withClickEvent(new ClickEvent.SuggestCommand(tellPlayerCommand))
+            );
+
+            Component verb = snapshot.event().formatVerb().withStyle(Styles.LIST_DEFAULT);
+
+            CompoundTag snapshotPayload = new CompoundTag();
+            snapshotPayload.put("id", StringTag.valueOf(snapshot.id()));
+
+            BlockPos pos = BlockPos.containing(snapshot.position());
+            String posFormat = pos.getX() + " " + pos.getY() + " " + pos.getZ();
+            Component position = Component.literal(posFormat).withStyle(Styles.LIST_DEFAULT
+                    .withHoverEvent(new HoverEvent.ShowText(Component.empty()
+                            .append(Component.literal(snapshot.formatPos()).withStyle(Styles.LIST_HIGHLIGHT))
+                            .append(Component.literal("\n" + snapshot.dimension().identifier()).withStyle(Styles.LIST_DEFAULT))
+                            .append(Component.literal("\n(click to teleport)").withStyle(Styles.LIST_DEFAULT))))
+                    .withClickEvent(new ClickEvent.Custom(InvRestore.TELEPORT_ACTION, Optional.of(snapshotPayload))));
+
+            return new Row(snapshot.event().formatEmoji(false), Component.empty()
+                    .append(player)
+                    .append(" ").append(verb), snapshotPayload, position);
+        }
+    }
+}
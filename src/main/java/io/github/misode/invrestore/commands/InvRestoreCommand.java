@@ -6,6 +6,7 @@ import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.exceptions.DynamicCommandExceptionType;
 import com.mojang.brigadier.tree.LiteralCommandNode;
 import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.Styles;
 import io.github.misode.invrestore.config.InvRestoreConfig;
 import io.github.misode.invrestore.data.Snapshot;
 import me.lucko.fabric.api.permissions.v0.Permissions;
@@ -47,6 +48,9 @@ public class InvRestoreCommand {
                         .then(argument("zone", StringArgumentType.greedyString())
                                 .suggests((ctx, builder) -> SharedSuggestionProvider.suggest(ZoneId.getAvailableZoneIds(), builder))
                                 .executes((ctx) -> changePreferredZone(ctx.getSource(), StringArgumentType.getString(ctx, "zone")))))
+                .then(literal("stats")
+                        .requires(ctx -> Permissions.check(ctx, "invrestore.stats", PermissionLevel.ADMINS))
+                        .executes((ctx) -> showStats(ctx.getSource())))
                 .then(literal("reload")
                         .requires(ctx -> Permissions.check(ctx, "invrestore.reload", PermissionLevel.ADMINS))
                         .executes((ctx) -> reloadConfig(ctx.getSource()))));
@@ -56,7 +60,7 @@ public class InvRestoreCommand {
     }
 
     private static int listPlayerSnapshots(CommandSourceStack ctx, String playerName) {
-        int result = InvRestore.sendSnapshotList(ctx.getPlayer(), playerName, Optional.empty(), 1);
+        int result = InvRestore.sendSnapshotList(ctx.getPlayer(), playerName, Optional.empty());
         if (result == 0) {
             ctx.sendFailure(Component.literal("No matching snapshots found"));
             return 0;
@@ -69,7 +73,7 @@ public class InvRestoreCommand {
         if (eventType == null) {
             throw ERROR_INVALID_EVENT_TYPE.create(type);
         }
-        int result = InvRestore.sendSnapshotList(ctx.getPlayer(), playerName, Optional.of(eventType), 1);
+        int result = InvRestore.sendSnapshotList(ctx.getPlayer(), playerName, Optional.of(eventType));
         if (result == 0) {
             ctx.sendFailure(Component.literal("No matching snapshots found"));
             return 0;
@@ -90,6 +94,13 @@ public class InvRestoreCommand {
         }
     }
 
+    private static int showStats(CommandSourceStack ctx) {
+        List<String> lines = InvRestore.formatStats();
+        ctx.sendSuccess(() -> Component.literal("--- InvRestore stats ---").withStyle(Styles.HEADER_DEFAULT), false);
+        lines.forEach(line -> ctx.sendSuccess(() -> Component.literal(line).withStyle(Styles.LIST_DEFAULT), false));
+        return lines.size();
+    }
+
     private static int reloadConfig(CommandSourceStack ctx) {
         Optional<InvRestoreConfig> config = InvRestoreConfig.load();
         if (config.isEmpty()) {
@@ -97,6 +108,7 @@ public class InvRestoreCommand {
             return 0;
         }
         InvRestore.config = config.get();
+        InvRestore.enforceStoreLimits();
         ctx.sendSuccess(() -> Component.literal("Reloaded config!"), false);
         return 1;
     }
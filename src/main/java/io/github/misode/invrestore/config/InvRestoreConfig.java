@@ -12,7 +12,10 @@ import com.mojang.serialization.MapCodec;
 import com.mojang.serialization.codecs.OptionalFieldCodec;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
 import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.data.Snapshot;
 import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.resources.Identifier;
+import net.minecraft.util.StringRepresentable;
 import net.minecraft.util.Util;
 
 import java.io.FileNotFoundException;
@@ -22,21 +25,34 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
-public record InvRestoreConfig(QueryResults queryResults, StoreLimits storeLimits) {
+public record InvRestoreConfig(QueryResults queryResults, StoreLimits storeLimits, Deduplication deduplication, Storage storage, Loading loading, Journal journal, Ingestion ingestion, Cache cache, AutoSave autoSave, Metrics metrics) {
     public static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
     public static final String FILE_NAME = "invrestore/config.json";
-    public static final Path FILE_PATH = FabricLoader.getInstance().getConfigDir().resolve(FILE_NAME);
-    public static final InvRestoreConfig DEFAULT = new InvRestoreConfig(QueryResults.DEFAULT, StoreLimits.DEFAULT);
+    public static final InvRestoreConfig DEFAULT = new InvRestoreConfig(QueryResults.DEFAULT, StoreLimits.DEFAULT, Deduplication.DEFAULT, Storage.DEFAULT, Loading.DEFAULT, Journal.DEFAULT, Ingestion.DEFAULT, Cache.DEFAULT, AutoSave.DEFAULT, Metrics.DEFAULT);
 
     public static final Codec<InvRestoreConfig> CODEC = RecordCodecBuilder.create(b -> b.group(
             optionalField(QueryResults.CODEC, "query_results", DEFAULT.queryResults).forGetter(InvRestoreConfig::queryResults),
-            optionalField(StoreLimits.CODEC, "store_limits", DEFAULT.storeLimits).forGetter(InvRestoreConfig::storeLimits)
+            optionalField(StoreLimits.CODEC, "store_limits", DEFAULT.storeLimits).forGetter(InvRestoreConfig::storeLimits),
+            optionalField(Deduplication.CODEC, "deduplication", DEFAULT.deduplication).forGetter(InvRestoreConfig::deduplication),
+            optionalField(Storage.CODEC, "storage", DEFAULT.storage).forGetter(InvRestoreConfig::storage),
+            optionalField(Loading.CODEC, "loading", DEFAULT.loading).forGetter(InvRestoreConfig::loading),
+            optionalField(Journal.CODEC, "journal", DEFAULT.journal).forGetter(InvRestoreConfig::journal),
+            optionalField(Ingestion.CODEC, "ingestion", DEFAULT.ingestion).forGetter(InvRestoreConfig::ingestion),
+            optionalField(Cache.CODEC, "cache", DEFAULT.cache).forGetter(InvRestoreConfig::cache),
+            optionalField(AutoSave.CODEC, "auto_save", DEFAULT.autoSave).forGetter(InvRestoreConfig::autoSave),
+            optionalField(Metrics.CODEC, "metrics", DEFAULT.metrics).forGetter(InvRestoreConfig::metrics)
     ).apply(b, InvRestoreConfig::new));
 
+    public static Path filePath() {
+        return FabricLoader.getInstance().getConfigDir().resolve(FILE_NAME);
+    }
+
     public static Optional<InvRestoreConfig> load() {
-        try (JsonReader reader = new JsonReader(new FileReader(FILE_PATH.toFile()))) {
+        try (JsonReader reader = new JsonReader(new FileReader(filePath().toFile()))) {
             return InvRestoreConfig.CODEC.parse(JsonOps.INSTANCE, GSON.fromJson(reader, JsonElement.class))
                     .resultOrPartial(Util.prefix("Failed to load " + FILE_NAME + ": ", InvRestore.LOGGER::error));
         } catch (FileNotFoundException e) {
@@ -54,8 +70,9 @@ public record InvRestoreConfig(QueryResults queryResults, StoreLimits storeLimit
                 .resultOrPartial(Util.prefix("Failed to save config: ", InvRestore.LOGGER::error))
                 .ifPresent(element -> {
                     try {
-                        Files.createDirectories(FILE_PATH.getParent());
-                        Files.writeString(FILE_PATH, GSON.toJson(element));
+                        Path path = filePath();
+                        Files.createDirectories(path.getParent());
+                        Files.writeString(path, GSON.toJson(element));
                     } catch (IOException ex) {
                         InvRestore.LOGGER.error("Failed to write to " + FILE_NAME, ex);
                     }
@@ -86,6 +103,190 @@ public record InvRestoreConfig(QueryResults queryResults, StoreLimits storeLimit
         ).apply(b, StoreLimits::new));
     }
 
+    /**
+     * What to do with a snapshot when the items haven't changed since the
+     * latest snapshot of the player, per event type. Collapse only replaces
+     * the latest snapshot when it has the same event type, otherwise an
+     * unchanged auto-save could replace a death snapshot. A collapsing event
+     * after a different one is kept like with {@link Mode#KEEP}.
+     */
+    public record Deduplication(Map<String, Mode> modes) {
+        public static final Deduplication DEFAULT = new Deduplication(Map.of(
+                "join", Mode.SKIP,
+                "disconnect", Mode.SKIP,
+                "level_change", Mode.SKIP,
+                "auto_save", Mode.SKIP
+        ));
+        public static final Codec<Deduplication> CODEC = Codec.unboundedMap(Codec.STRING, Mode.CODEC).xmap(modes -> {
+            Map<String, Mode> merged = new HashMap<>(DEFAULT.modes);
+            merged.putAll(modes);
+            return new Deduplication(Map.copyOf(merged));
+        }, Deduplication::modes);
+
+        public Mode mode(Snapshot.EventType<?> type) {
+            Identifier key = Snapshot.EventType.REGISTRY.getKey(type);
+            return key == null ? Mode.KEEP : this.modes.getOrDefault(key.getPath(), Mode.KEEP);
+        }
+
+        public enum Mode implements StringRepresentable {
+            KEEP("keep"),
+            SKIP("skip"),
+            COLLAPSE("collapse");
+
+            public static final Codec<Mode> CODEC = StringRepresentable.fromEnum(Mode::values);
+
+            private final String name;
+
+            Mode(String name) {
+                this.name = name;
+            }
+
+            @Override
+            public String getSerializedName() {
+                return this.name;
+            }
+        }
+    }
+
+    public record Storage(Backend backend, Format format, Compression compression, boolean zstdDictionary, boolean deltaEncoding, int keyframeInterval, int archiveAfterDays) {
+        public static final Storage DEFAULT = new Storage(Backend.SEGMENTS, Format.BINARY, Compression.GZIP, false, false, 16, 0);
+        public static final Codec<Storage> CODEC = RecordCodecBuilder.create(b -> b.group(
+                optionalField(Backend.CODEC, "backend", DEFAULT.backend).forGetter(Storage::backend),
+                optionalField(Format.CODEC, "format", DEFAULT.format).forGetter(Storage::format),
+                optionalField(Compression.CODEC, "compression", DEFAULT.compression).forGetter(Storage::compression),
+                optionalField(Codec.BOOL, "zstd_dictionary", DEFAULT.zstdDictionary).forGetter(Storage::zstdDictionary),
+                optionalField(Codec.BOOL, "delta_encoding", DEFAULT.deltaEncoding).forGetter(Storage::deltaEncoding),
+                optionalField(Codec.intRange(1, 1000), "keyframe_interval", DEFAULT.keyframeInterval).forGetter(Storage::keyframeInterval),
+                optionalField(Codec.intRange(0, 3650), "archive_after_days", DEFAULT.archiveAfterDays).forGetter(Storage::archiveAfterDays)
+        ).apply(b, Storage::new));
+    }
+
+    public enum Backend implements StringRepresentable {
+        SEGMENTS("segments"),
+        MVSTORE("mvstore");
+
+        public static final Codec<Backend> CODEC = StringRepresentable.fromEnum(Backend::values);
+
+        private final String name;
+
+        Backend(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getSerializedName() {
+            return this.name;
+        }
+    }
+
+    public enum Compression implements StringRepresentable {
+        NONE("none"),
+        GZIP("gzip"),
+        LZ4("lz4"),
+        ZSTD("zstd");
+
+        public static final Codec<Compression> CODEC = StringRepresentable.fromEnum(Compression::values);
+
+        private final String name;
+
+        Compression(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getSerializedName() {
+            return this.name;
+        }
+    }
+
+    public enum Format implements StringRepresentable {
+        NBT("nbt"),
+        BINARY("binary");
+
+        public static final Codec<Format> CODEC = StringRepresentable.fromEnum(Format::values);
+
+        private final String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getSerializedName() {
+            return this.name;
+        }
+    }
+
+    public record Cache(int maxEntries, int maxStacks) {
+        public static final Cache DEFAULT = new Cache(256, 8192);
+        public static final Codec<Cache> CODEC = RecordCodecBuilder.create(b -> b.group(
+                optionalField(Codec.intRange(0, 100_000), "max_entries", DEFAULT.maxEntries).forGetter(Cache::maxEntries),
+                optionalField(Codec.intRange(0, Integer.MAX_VALUE), "max_stacks", DEFAULT.maxStacks).forGetter(Cache::maxStacks)
+        ).apply(b, Cache::new));
+    }
+
+    public record Loading(int parallelism, int eagerSegments) {
+        public static final Loading DEFAULT = new Loading(0, 0);
+        public static final Codec<Loading> CODEC = RecordCodecBuilder.create(b -> b.group(
+                optionalField(Codec.intRange(0, 256), "parallelism", DEFAULT.parallelism).forGetter(Loading::parallelism),
+                optionalField(Codec.intRange(0, 100_000), "eager_segments", DEFAULT.eagerSegments).forGetter(Loading::eagerSegments)
+        ).apply(b, Loading::new));
+
+        public int threads() {
+            return this.parallelism > 0 ? this.parallelism : Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    public record Journal(boolean enabled, int flushIntervalMillis) {
+        public static final Journal DEFAULT = new Journal(true, 100);
+        public static final Codec<Journal> CODEC = RecordCodecBuilder.create(b -> b.group(
+                optionalField(Codec.BOOL, "enabled", DEFAULT.enabled).forGetter(Journal::enabled),
+                optionalField(Codec.intRange(1, 60000), "flush_interval_millis", DEFAULT.flushIntervalMillis).forGetter(Journal::flushIntervalMillis)
+        ).apply(b, Journal::new));
+    }
+
+    public record Ingestion(int queueCapacity, Overflow overflow) {
+        public static final Ingestion DEFAULT = new Ingestion(1024, Overflow.COALESCE);
+        public static final Codec<Ingestion> CODEC = RecordCodecBuilder.create(b -> b.group(
+                optionalField(Codec.intRange(1, 1_000_000), "queue_capacity", DEFAULT.queueCapacity).forGetter(Ingestion::queueCapacity),
+                optionalField(Overflow.CODEC, "overflow", DEFAULT.overflow).forGetter(Ingestion::overflow)
+        ).apply(b, Ingestion::new));
+    }
+
+    public enum Overflow implements StringRepresentable {
+        DROP("drop"),
+        COALESCE("coalesce");
+
+        public static final Codec<Overflow> CODEC = StringRepresentable.fromEnum(Overflow::values);
+
+        private final String name;
+
+        Overflow(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getSerializedName() {
+            return this.name;
+        }
+    }
+
+    public record AutoSave(int intervalMinutes, int playersPerTick, int msptBudget) {
+        public static final AutoSave DEFAULT = new AutoSave(0, 2, 40);
+        public static final Codec<AutoSave> CODEC = RecordCodecBuilder.create(b -> b.group(
+                optionalField(Codec.intRange(0, 10080), "interval_minutes", DEFAULT.intervalMinutes).forGetter(AutoSave::intervalMinutes),
+                optionalField(Codec.intRange(1, 100), "players_per_tick", DEFAULT.playersPerTick).forGetter(AutoSave::playersPerTick),
+                optionalField(Codec.intRange(1, 1000), "mspt_budget", DEFAULT.msptBudget).forGetter(AutoSave::msptBudget)
+        ).apply(b, AutoSave::new));
+    }
+
+    public record Metrics(int logIntervalMinutes) {
+        public static final Metrics DEFAULT = new Metrics(0);
+        public static final Codec<Metrics> CODEC = RecordCodecBuilder.create(b -> b.group(
+                optionalField(Codec.intRange(0, 10080), "log_interval_minutes", DEFAULT.logIntervalMinutes).forGetter(Metrics::logIntervalMinutes)
+        ).apply(b, Metrics::new));
+    }
+
     private static <T> MapCodec<T> optionalField(Codec<T> codec, String name, T defaultValue) {
         return new OptionalFieldCodec<>(name, codec, false)
                 .xmap(a -> a.orElse(defaultValue), Optional::of);
@@ -3,6 +3,8 @@ package io.github.misode.invrestore.data;
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
 import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
 import net.minecraft.util.Util;
 import net.minecraft.core.UUIDUtil;
 import net.minecraft.nbt.*;
@@ -11,78 +13,647 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.storage.LevelResource;
 
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public record InvRestoreDatabase(int format, List<Snapshot> snapshots, Map<UUID, PlayerPreferences> preferences) {
-    public static final String FILE_NAME = "invrestore.dat";
-    public static final int FORMAT_VERSION = 1;
-    public static final Codec<InvRestoreDatabase> CODEC = RecordCodecBuilder.create(b -> b.group(
-            Codec.INT.fieldOf("format_version").forGetter(InvRestoreDatabase::format),
-            Snapshot.CODEC.listOf().fieldOf("snapshots").orElse(List.of()).forGetter(InvRestoreDatabase::snapshots),
-            Codec.unboundedMap(UUIDUtil.STRING_CODEC, PlayerPreferences.CODEC).fieldOf("player_preferences").orElse(Map.of()).forGetter(InvRestoreDatabase::preferences)
-    ).apply(b, InvRestoreDatabase::new));
+public class InvRestoreDatabase {
+    public static final String LEGACY_FILE_NAME = "invrestore.dat";
+    public static final String DIRECTORY_NAME = "invrestore";
+    public static final String PREFERENCES_FILE_NAME = "preferences.dat";
+    public static final int FORMAT_VERSION = 2;
+    private static final int ENCODE_THREADS = Math.clamp(Runtime.getRuntime().availableProcessors() / 2, 1, 4);
+    public static final Codec<Map<UUID, PlayerPreferences>> PREFERENCES_CODEC = Codec.unboundedMap(UUIDUtil.STRING_CODEC, PlayerPreferences.CODEC);
 
-    public InvRestoreDatabase(int format, List<Snapshot> snapshots, Map<UUID, PlayerPreferences> preferences) {
-        this.format = format;
-        this.snapshots = new ArrayList<>(snapshots);
-        this.preferences = new HashMap<>(preferences);
+    private final SnapshotIndex index = new SnapshotIndex();
+    private final ItemStackPool pool = new ItemStackPool();
+    private final SnapshotItemsCache itemsCache = new SnapshotItemsCache();
+    private final Map<UUID, PlayerPreferences> preferences = new HashMap<>();
+    private final LinkedHashMap<String, Snapshot> unsaved = new LinkedHashMap<>();
+    private final List<String> evicted = new ArrayList<>();
+    private final Set<String> archived = new HashSet<>();
+    /** Snapshots before this cursor have been handed to the archive */
+    private SnapshotCursor archivedUntil = null;
+    /** Inventory fingerprint of the latest snapshot of each player, also read by producers */
+    private final Map<UUID, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    /** Decoded items of the latest snapshot of each player, also read by producers */
+    private final Map<UUID, SnapshotItems> latestItems = new ConcurrentHashMap<>();
+    private final SnapshotIngestQueue ingestQueue = new SnapshotIngestQueue();
+    private boolean preferencesDirty = false;
+    /** Older snapshots that are still being loaded on the I/O thread */
+    private CompletableFuture<List<Snapshot>> remainingLoad = null;
+
+    /** Only accessed from the I/O thread after loading */
+    private final Path directory;
+    private final SnapshotStore store;
+    private final SnapshotArchive archive;
+    private final List<Snapshot> failedSnapshots = new ArrayList<>();
+    private final List<Snapshot> failedArchive = new ArrayList<>();
+    /** Snapshots that have been archived but not yet removed from the store */
+    private final Set<String> archivedInStore = new HashSet<>();
+    private Map<UUID, PlayerPreferences> failedPreferences = null;
+    private Path legacyPath = null;
+    /** Queued to from the server thread, written on the I/O thread */
+    private SnapshotJournal journal = null;
+
+    private final ScheduledExecutorService ioExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "InvRestore IO");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private CompletableFuture<Void> pendingWrite = CompletableFuture.completedFuture(null);
+    /** Encodes the items of new snapshots ahead of the save */
+    private final ExecutorService encodeExecutor = Executors.newFixedThreadPool(ENCODE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "InvRestore Encode");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Created once from the frozen registries, shared by all threads */
+    private RegistryOps<Tag> ops = null;
+
+    InvRestoreDatabase(Path directory) {
+        this(directory, new SnapshotSegments(directory));
     }
 
-    public InvRestoreDatabase() {
-        this(FORMAT_VERSION, List.of(), Map.of());
+    InvRestoreDatabase(Path directory, SnapshotStore store) {
+        this.directory = directory;
+        this.store = store;
+        this.archive = new SnapshotArchive(directory);
     }
 
-    public static InvRestoreDatabase load(MinecraftServer server) {
-        Path path = server.getWorldPath(LevelResource.ROOT)
-                .resolve("data")
-                .resolve(FILE_NAME);
-        try {
-            RegistryOps<Tag> ops = server.registryAccess().createSerializationContext(NbtOps.INSTANCE);
-            CompoundTag tag = NbtIo.readCompressed(path, NbtAccounter.unlimitedHeap());
-            return InvRestoreDatabase.CODEC.decode(ops, tag)
-                    .getOrThrow().getFirst();
-        } catch (IOException e) {
-            InvRestore.LOGGER.info("Creating new file " + FILE_NAME);
-            InvRestoreDatabase newStore = new InvRestoreDatabase();
-            newStore.save(server);
-            return newStore;
+    public SnapshotIndex index() {
+        return this.index;
+    }
+
+    public Map<UUID, PlayerPreferences> preferences() {
+        return Collections.unmodifiableMap(this.preferences);
+    }
+
+    public ItemStackPool pool() {
+        return this.pool;
+    }
+
+    public SnapshotItemsCache itemsCache() {
+        return this.itemsCache;
+    }
+
+    public SnapshotIngestQueue ingestQueue() {
+        return this.ingestQueue;
+    }
+
+    /**
+     * Queues a captured snapshot, can be called from any thread. It is added
+     * by {@link #drainIngestQueue} on the server thread.
+     */
+    public boolean submit(SnapshotIngestQueue.Request request) {
+        return this.ingestQueue.offer(request, InvRestore.config.ingestion());
+    }
+
+    /**
+     * Adds all queued snapshots, unless nothing changed since the latest
+     * snapshot of the player and the event type is configured to skip or
+     * collapse those. Called on the server thread, the only consumer.
+     */
+    public void drainIngestQueue() {
+        SnapshotIngestQueue.Request request;
+        while ((request = this.ingestQueue.poll()) != null) {
+            Snapshot snapshot = request.snapshot();
+            if (request.mode() != InvRestoreConfig.Deduplication.Mode.KEEP) {
+                Optional<Snapshot> unchanged = this.findUnchanged(snapshot.playerUuid(), request.fingerprint());
+                if (unchanged.isPresent() && request.mode() == InvRestoreConfig.Deduplication.Mode.SKIP) {
+                    InvRestoreMetrics.DEDUPLICATED.incrementAndGet();
+                    continue;
+                }
+                // Only within a run of the same event, see InvRestoreConfig.Deduplication
+                if (unchanged.isPresent() && unchanged.get().event().getType() == snapshot.event().getType()) {
+                    this.removeSnapshot(unchanged.get());
+                    InvRestoreMetrics.DEDUPLICATED.incrementAndGet();
+                }
+            }
+            this.addSnapshot(snapshot, request.modification(), request.fingerprint());
+            InvRestoreMetrics.recordCapture(snapshot.event().getType());
         }
     }
 
-    public void save(MinecraftServer server) {
-        Path path = server.getWorldPath(LevelResource.ROOT)
-                .resolve("data")
-                .resolve(FILE_NAME);
-        this.enforceLimits();
+    public int archivedCount() {
+        return this.archived.size();
+    }
+
+    public void addSnapshot(Snapshot snapshot) {
+        if (this.insert(snapshot)) {
+            this.unsaved.put(snapshot.id(), snapshot);
+            this.preEncode(snapshot);
+            if (this.journal != null && InvRestore.config.journal().enabled() && this.journal.add(snapshot)) {
+                this.scheduleJournalFlush();
+            }
+            this.enforceLimits(snapshot.playerUuid());
+        }
+    }
+
+    public void addSnapshot(Snapshot snapshot, long modification, long fingerprint) {
+        this.addSnapshot(snapshot);
+        if (this.index.latest(snapshot.playerUuid()).orElse(null) == snapshot) {
+            this.fingerprints.put(snapshot.playerUuid(), new Fingerprint(modification, fingerprint));
+        }
+    }
+
+    public void removeSnapshot(Snapshot snapshot) {
+        if (this.index.get(snapshot.id()).orElse(null) == snapshot) {
+            this.remove(snapshot);
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the latest snapshot of the player if none of
+     * their containers were modified since it was captured, so it doesn't
+     * have to be computed again.
+     */
+    public OptionalLong findFingerprint(UUID playerUuid, long modification) {
+        Fingerprint latest = this.fingerprints.get(playerUuid);
+        return latest != null && latest.modification == modification ? OptionalLong.of(latest.hash) : OptionalLong.empty();
+    }
+
+    /**
+     * Returns the latest snapshot of the player if it has the same inventory
+     * fingerprint. Snapshots loaded from disk are fingerprinted on first use.
+     */
+    public Optional<Snapshot> findUnchanged(UUID playerUuid, long fingerprint) {
+        Optional<Snapshot> latest = this.index.latest(playerUuid);
+        if (latest.isEmpty()) {
+            return Optional.empty();
+        }
+        Fingerprint latestFingerprint = this.fingerprints.get(playerUuid);
+        if (latestFingerprint == null) {
+            latestFingerprint = new Fingerprint(InventoryFingerprint.UNKNOWN_MODIFICATION, InventoryFingerprint.of(this.itemsCache.get(latest.get())));
+            this.fingerprints.put(playerUuid, latestFingerprint);
+        }
+        return latestFingerprint.hash == fingerprint ? latest : Optional.empty();
+    }
+
+    /**
+     * Returns the items of the latest snapshot of the player when they are
+     * decoded, so a capture can share the stacks that didn't change. Can be
+     * called from any thread, unlike the index.
+     */
+    public Optional<SnapshotItems> findLatestItems(UUID playerUuid) {
+        return Optional.ofNullable(this.latestItems.get(playerUuid));
+    }
+
+    public void updatePreferences(UUID player, PlayerPreferences preferences) {
+        this.preferences.put(player, preferences);
+        this.preferencesDirty = true;
+    }
+
+    private static Path dataPath(MinecraftServer server) {
+        return server.getWorldPath(LevelResource.ROOT).resolve("data");
+    }
+
+    public static InvRestoreDatabase load(MinecraftServer server) throws IOException {
+        long start = InvRestoreMetrics.LOAD.start();
+        Path directory = dataPath(server).resolve(DIRECTORY_NAME);
+        InvRestoreConfig.Backend backend = InvRestore.config.storage().backend();
+        warnAboutOtherBackend(directory, backend);
+        InvRestoreDatabase database = new InvRestoreDatabase(directory, SnapshotStore.create(backend, directory));
         RegistryOps<Tag> ops = server.registryAccess().createSerializationContext(NbtOps.INSTANCE);
-        InvRestoreDatabase.CODEC.encodeStart(ops, this)
-                .ifSuccess(tag -> {
-                    try {
-                        NbtIo.writeCompressed((CompoundTag) tag, path);
-                    } catch (IOException e) {
-                        InvRestore.LOGGER.error("Failed to save " + FILE_NAME, e);
+        database.ops = ops;
+        List<Snapshot> snapshots = new ArrayList<>(database.archive.load(ops, InvRestore.config.loading()));
+        snapshots.forEach(snapshot -> database.archived.add(snapshot.id()));
+        for (Snapshot snapshot : database.store.load(ops, InvRestore.config.loading())) {
+            // The archive was written but the snapshot wasn't removed from the store yet
+            if (database.archived.contains(snapshot.id())) {
+                database.archivedInStore.add(snapshot.id());
+            } else {
+                snapshots.add(snapshot);
+            }
+        }
+        snapshots.sort(Comparator.comparing(Snapshot::time));
+        snapshots.forEach(database::insert);
+
+        // Snapshots that weren't saved before the server stopped, usually because it crashed
+        SnapshotJournal journal = new SnapshotJournal(directory, ops);
+        int replayed = 0;
+        for (Snapshot snapshot : journal.load()) {
+            if (database.insert(snapshot)) {
+                database.unsaved.put(snapshot.id(), snapshot);
+                replayed += 1;
+            } else {
+                journal.forget(snapshot.id());
+            }
+        }
+        if (replayed > 0) {
+            InvRestore.LOGGER.info("Recovered {} unsaved snapshots from {}", replayed, SnapshotJournal.FILE_NAME);
+        }
+
+        Path preferencesPath = directory.resolve(PREFERENCES_FILE_NAME);
+        if (Files.exists(preferencesPath)) {
+            CompoundTag tag = NbtIo.readCompressed(preferencesPath, NbtAccounter.unlimitedHeap());
+            PREFERENCES_CODEC.parse(ops, tag.getCompoundOrEmpty("player_preferences"))
+                    .resultOrPartial(Util.prefix("Failed to load " + PREFERENCES_FILE_NAME + ": ", InvRestore.LOGGER::error))
+                    .ifPresent(database.preferences::putAll);
+        }
+
+        Path legacyPath = dataPath(server).resolve(LEGACY_FILE_NAME);
+        if (Files.exists(legacyPath)) {
+            InvRestore.LOGGER.info("Migrating {} to {}/", LEGACY_FILE_NAME, DIRECTORY_NAME);
+            CompoundTag tag = NbtIo.readCompressed(legacyPath, NbtAccounter.unlimitedHeap());
+            LegacyData legacy = LegacyData.CODEC.parse(ops, tag).getOrThrow(IOException::new);
+            legacy.snapshots().forEach(database::addSnapshot);
+            legacy.preferences().forEach(database::updatePreferences);
+            database.legacyPath = legacyPath;
+        }
+        // Assigned after the migration, the legacy file is kept until its snapshots are saved
+        database.journal = journal;
+        database.enforceLimits();
+        database.loadRemaining(ops);
+        InvRestoreMetrics.LOAD.stop(start);
+        return database;
+    }
+
+    /**
+     * Reads the snapshots that the store left for later on the I/O thread,
+     * before anything is written. They are added by {@link #mergeRemaining}.
+     */
+    private void loadRemaining(RegistryOps<Tag> ops) {
+        Set<String> archivedIds = Set.copyOf(this.archived);
+        this.remainingLoad = CompletableFuture.supplyAsync(() -> {
+            try {
+                List<Snapshot> result = new ArrayList<>();
+                for (Snapshot snapshot : this.store.loadRemaining(ops)) {
+                    if (archivedIds.contains(snapshot.id())) {
+                        this.archivedInStore.add(snapshot.id());
+                    } else {
+                        result.add(snapshot);
+                    }
+                }
+                result.sort(Comparator.comparing(Snapshot::time));
+                return result;
+            } catch (IOException | RuntimeException e) {
+                InvRestore.LOGGER.error("Failed to load older snapshots", e);
+                return List.of();
+            }
+        }, this.ioExecutor);
+        this.pendingWrite = this.remainingLoad.thenAccept(snapshots -> {});
+    }
+
+    /**
+     * Adds the snapshots that were loaded in the background once they are
+     * ready. Called on the server thread every tick.
+     */
+    public void mergeRemaining() {
+        if (this.remainingLoad == null || !this.remainingLoad.isDone()) {
+            return;
+        }
+        List<Snapshot> snapshots = this.remainingLoad.join();
+        this.remainingLoad = null;
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        List<Snapshot> added = this.index.merge(snapshots);
+        for (Snapshot snapshot : added) {
+            this.checkArchivable(snapshot);
+            snapshot.contents().attach(this.pool);
+            this.fingerprints.remove(snapshot.playerUuid());
+            this.updateLatestItems(snapshot.playerUuid());
+        }
+        this.enforceLimits();
+        InvRestore.LOGGER.info("Loaded {} older snapshots in the background", added.size());
+    }
+
+    /**
+     * Streams the snapshots stored in a world folder without a running
+     * server, for the offline export tool. Every storage backend, the archive
+     * and the legacy file are read, only the ids are kept in memory to skip
+     * snapshots that are stored more than once. Snapshots that are only in
+     * the journal are not included.
+     */
+    public static void forEachRaw(Path worldDirectory, RegistryOps<Tag> ops, RawSnapshot.Sink sink) throws IOException {
+        Path dataPath = worldDirectory.resolve("data");
+        Path directory = dataPath.resolve(DIRECTORY_NAME);
+        Set<String> seen = new HashSet<>();
+        RawSnapshot.Sink unique = snapshot -> {
+            if (seen.add(snapshot.header().id())) {
+                sink.accept(snapshot);
+            }
+        };
+        Path legacyPath = dataPath.resolve(LEGACY_FILE_NAME);
+        if (Files.exists(legacyPath)) {
+            CompoundTag tag = NbtIo.readCompressed(legacyPath, NbtAccounter.unlimitedHeap());
+            for (Tag entry : tag.getListOrEmpty("snapshots")) {
+                if (entry instanceof CompoundTag snapshot) {
+                    CompoundTag contents = snapshot.getCompoundOrEmpty("contents");
+                    Optional<Snapshot> header = SnapshotStore.decodeRawHeader(snapshot, ops)
+                            .resultOrPartial(Util.prefix("Skipping snapshot in " + LEGACY_FILE_NAME + ": ", InvRestore.LOGGER::error));
+                    if (header.isPresent()) {
+                        unique.accept(new RawSnapshot(header.get(), RawSnapshot.Items.fromNbt(contents)));
                     }
-                })
-                .resultOrPartial(Util.prefix("Failed to save " + FILE_NAME + ": ", InvRestore.LOGGER::error));
+                }
+            }
+        }
+        new SnapshotArchive(directory).forEachRaw(ops, unique);
+        new SnapshotSegments(directory).forEachRaw(ops, unique);
+        new MVSnapshotStore(directory).forEachRaw(ops, unique);
+    }
+
+    private static void warnAboutOtherBackend(Path directory, InvRestoreConfig.Backend backend) throws IOException {
+        boolean otherExists = switch (backend) {
+            case SEGMENTS -> Files.exists(directory.resolve(MVSnapshotStore.FILE_NAME));
+            case MVSTORE -> SnapshotSegments.exists(directory);
+        };
+        if (otherExists) {
+            InvRestore.LOGGER.warn("Found snapshots of another storage backend in {}/, they are ignored with backend {}", DIRECTORY_NAME, backend.getSerializedName());
+        }
     }
 
+    /**
+     * Captures the changes since the last save and hands them off to the
+     * I/O thread. Encoding, compression and writing happen off the server thread.
+     * Snapshots older than the archive age are moved to the archive.
+     */
+    public void save(MinecraftServer server) {
+        this.drainIngestQueue();
+        SaveRequest request = new SaveRequest(
+                this.ops,
+                InvRestore.config.storage(),
+                List.copyOf(this.unsaved.values()),
+                this.collectArchivable(InvRestore.config.storage().archiveAfterDays()),
+                List.copyOf(this.evicted),
+                this.preferencesDirty ? Optional.of(Map.copyOf(this.preferences)) : Optional.empty());
+        this.unsaved.clear();
+        this.evicted.clear();
+        this.preferencesDirty = false;
+        this.pendingWrite = this.pendingWrite.thenRunAsync(() -> this.write(request), this.ioExecutor);
+    }
+
+    /**
+     * Blocks until all previously requested saves have been written, then
+     * stops the I/O thread. The database must not be saved after this.
+     */
+    public void close() {
+        this.encodeExecutor.shutdownNow();
+        this.pendingWrite.join();
+        this.ioExecutor.shutdown();
+        try {
+            // Scheduled journal flushes still run after the shutdown
+            this.ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.store.close();
+            this.archive.close();
+            if (this.journal != null) {
+                this.journal.close();
+            }
+        } catch (IOException | IllegalStateException e) {
+            InvRestore.LOGGER.error("Failed to close snapshot store", e);
+        }
+    }
+
+    /**
+     * Flushes the journal once the interval has passed, so all snapshots that
+     * are added in the meantime are synced to disk together. Changes after
+     * {@link #close} are not journaled anymore, they won't be saved either.
+     */
+    private void scheduleJournalFlush() {
+        if (this.ioExecutor.isShutdown()) {
+            return;
+        }
+        this.ioExecutor.schedule(() -> {
+            try {
+                this.journal.flush();
+            } catch (IOException | RuntimeException e) {
+                InvRestore.LOGGER.error("Failed to write {}", SnapshotJournal.FILE_NAME, e);
+            }
+        }, InvRestore.config.journal().flushIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Encodes the items of a new snapshot on a worker thread, so the journal
+     * and the next save only have to copy the bytes. When the encoding
+     * hasn't finished in time, the I/O thread encodes the items itself.
+     */
+    private void preEncode(Snapshot snapshot) {
+        if (InvRestore.config.storage().format() != InvRestoreConfig.Format.BINARY && !InvRestore.config.journal().enabled()
+                || this.encodeExecutor.isShutdown()) {
+            return;
+        }
+        RegistryOps<Tag> ops = this.ops;
+        this.encodeExecutor.execute(() -> {
+            long start = InvRestoreMetrics.PRE_ENCODE.start();
+            try {
+                snapshot.contents().preEncode(ops);
+            } catch (IOException | RuntimeException e) {
+                InvRestore.LOGGER.error("Failed to encode snapshot {}", snapshot.id(), e);
+            }
+            InvRestoreMetrics.PRE_ENCODE.stop(start);
+        });
+    }
+
+    /**
+     * Returns the snapshots that became old enough to be archived since the
+     * last save. The cutoff only moves once per day, so the archive gets at
+     * most one new part per day, and only the snapshots since the previous
+     * cutoff are looked at.
+     */
+    private List<Snapshot> collectArchivable(int archiveAfterDays) {
+        if (archiveAfterDays <= 0) {
+            this.archivedUntil = null;
+            return List.of();
+        }
+        Instant cutoff = Instant.now().truncatedTo(ChronoUnit.DAYS).minus(Duration.ofDays(archiveAfterDays));
+        SnapshotCursor until = new SnapshotCursor(cutoff, "");
+        List<Snapshot> result = new ArrayList<>();
+        for (Snapshot snapshot : this.index.range(Optional.ofNullable(this.archivedUntil), until)) {
+            if (this.archived.add(snapshot.id())) {
+                result.add(snapshot);
+            }
+        }
+        if (this.archivedUntil == null || until.compareTo(this.archivedUntil) > 0) {
+            this.archivedUntil = until;
+        }
+        return result;
+    }
+
+    /** Snapshots that are added before the archive cutoff are looked at again */
+    private void checkArchivable(Snapshot snapshot) {
+        if (this.archivedUntil != null && SnapshotCursor.of(snapshot).compareTo(this.archivedUntil) < 0) {
+            this.archivedUntil = null;
+        }
+    }
+
+    private void write(SaveRequest request) {
+        try {
+            Set<String> evictedIds = new HashSet<>(request.evictedIds());
+            this.failedSnapshots.removeIf(s -> evictedIds.contains(s.id()));
+            this.failedArchive.removeIf(s -> evictedIds.contains(s.id()));
+            this.failedArchive.addAll(request.archivable());
+            List<Snapshot> archivable = List.copyOf(this.failedArchive);
+            try {
+                this.archive.write(archivable, request.evictedIds(), request.ops(), request.storage());
+                archivable.forEach(s -> this.archivedInStore.add(s.id()));
+                this.failedArchive.clear();
+            } catch (IOException | IllegalStateException e) {
+                InvRestore.LOGGER.error("Failed to archive snapshots to {}/", DIRECTORY_NAME, e);
+            }
+
+            List<Snapshot> batch = new ArrayList<>(this.failedSnapshots);
+            batch.addAll(request.unsaved());
+            batch.removeIf(s -> this.archivedInStore.contains(s.id()));
+            List<String> removedIds = new ArrayList<>(request.evictedIds());
+            removedIds.addAll(this.archivedInStore);
+            try {
+                this.store.write(batch, removedIds, request.ops(), request.storage());
+                this.failedSnapshots.clear();
+                this.archivedInStore.clear();
+                if (this.journal != null) {
+                    List<String> savedIds = new ArrayList<>(removedIds);
+                    batch.forEach(s -> savedIds.add(s.id()));
+                    this.checkpointJournal(savedIds);
+                }
+                batch.forEach(s -> s.contents().releaseEncoded());
+            } catch (IOException | IllegalStateException e) {
+                InvRestore.LOGGER.error("Failed to save snapshots to {}/", DIRECTORY_NAME, e);
+                this.failedSnapshots.clear();
+                this.failedSnapshots.addAll(batch);
+            }
+
+            request.preferences().ifPresent(preferences -> this.failedPreferences = preferences);
+            if (this.failedPreferences != null) {
+                PREFERENCES_CODEC.encodeStart(request.ops(), this.failedPreferences)
+                        .ifSuccess(preferencesTag -> {
+                            try {
+                                CompoundTag tag = new CompoundTag();
+                                tag.putInt("format_version", FORMAT_VERSION);
+                                tag.put("player_preferences", preferencesTag);
+                                writeAtomically(tag, this.directory.resolve(PREFERENCES_FILE_NAME));
+                                this.failedPreferences = null;
+                            } catch (IOException e) {
+                                InvRestore.LOGGER.error("Failed to save " + PREFERENCES_FILE_NAME, e);
+                            }
+                        })
+                        .resultOrPartial(Util.prefix("Failed to save " + PREFERENCES_FILE_NAME + ": ", InvRestore.LOGGER::error));
+            }
+
+            if (this.legacyPath != null && this.failedSnapshots.isEmpty() && this.failedArchive.isEmpty() && this.failedPreferences == null) {
+                Files.move(this.legacyPath, this.legacyPath.resolveSibling(LEGACY_FILE_NAME + "_old"), StandardCopyOption.REPLACE_EXISTING);
+                this.legacyPath = null;
+            }
+        } catch (Exception e) {
+            InvRestore.LOGGER.error("Failed to save database", e);
+        }
+    }
+
+    private void checkpointJournal(List<String> savedIds) {
+        try {
+            this.journal.checkpoint(savedIds);
+        } catch (IOException | RuntimeException e) {
+            InvRestore.LOGGER.error("Failed to truncate {}", SnapshotJournal.FILE_NAME, e);
+        }
+    }
+
+    private static void writeAtomically(CompoundTag tag, Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        NbtIo.writeCompressed(tag, temp);
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Applies the store limits to every player, used after loading or when
+     * the limits have changed. Inserts enforce the limits incrementally.
+     */
     public void enforceLimits() {
+        List.copyOf(this.index.playerUuids()).forEach(this::enforcePlayerLimit);
+        this.enforceTotalLimit();
+    }
+
+    private void enforceLimits(UUID playerUuid) {
+        this.enforcePlayerLimit(playerUuid);
+        this.enforceTotalLimit();
+    }
+
+    private void enforcePlayerLimit(UUID playerUuid) {
         int maxPerPlayer = InvRestore.config.storeLimits().maxPerPlayer();
+        while (this.index.count(playerUuid) > maxPerPlayer) {
+            this.index.oldest(playerUuid).ifPresent(this::evict);
+        }
+    }
+
+    private void enforceTotalLimit() {
         int maxTotal = InvRestore.config.storeLimits().maxTotal();
-        List<Snapshot> newSnapshots = snapshots.stream()
-                .collect(Collectors.groupingBy(Snapshot::playerUuid))
-                .values().stream()
-                .flatMap(playerSnapshots -> playerSnapshots.stream()
-                        .sorted(Comparator.comparing(Snapshot::time))
-                        .skip(Math.max(0, playerSnapshots.size() - maxPerPlayer)))
-                .sorted(Comparator.comparing(Snapshot::time))
-                .toList();
-        if (newSnapshots.size() > maxTotal) {
-            newSnapshots = newSnapshots.subList(newSnapshots.size() - maxTotal, newSnapshots.size());
-        }
-        this.snapshots.clear();
-        this.snapshots.addAll(newSnapshots);
+        while (this.index.size() > maxTotal) {
+            this.index.oldest().ifPresent(this::evict);
+        }
+    }
+
+    private boolean insert(Snapshot snapshot) {
+        if (!this.index.add(snapshot)) {
+            return false;
+        }
+        this.checkArchivable(snapshot);
+        snapshot.contents().attach(this.pool);
+        if (this.index.latest(snapshot.playerUuid()).orElse(null) == snapshot) {
+            this.fingerprints.remove(snapshot.playerUuid());
+            this.updateLatestItems(snapshot.playerUuid());
+        }
+        return true;
+    }
+
+    private void updateLatestItems(UUID playerUuid) {
+        Optional<SnapshotContents> latest = this.index.latest(playerUuid)
+                .map(Snapshot::contents)
+                .filter(SnapshotContents::isLoaded);
+        if (latest.isPresent()) {
+            this.latestItems.put(playerUuid, latest.get().get());
+        } else {
+            this.latestItems.remove(playerUuid);
+        }
+    }
+
+    private void evict(Snapshot snapshot) {
+        this.remove(snapshot);
+        InvRestoreMetrics.EVICTIONS.incrementAndGet();
+    }
+
+    private void remove(Snapshot snapshot) {
+        this.index.remove(snapshot);
+        this.archived.remove(snapshot.id());
+        this.itemsCache.invalidate(snapshot.id());
+        Optional<Snapshot> latest = this.index.latest(snapshot.playerUuid());
+        if (latest.isEmpty() || latest.get().time().isBefore(snapshot.time())) {
+            this.fingerprints.remove(snapshot.playerUuid());
+            this.updateLatestItems(snapshot.playerUuid());
+        }
+        snapshot.contents().detach();
+        if (this.unsaved.remove(snapshot.id()) == null) {
+            this.evicted.add(snapshot.id());
+        } else if (this.journal != null && this.journal.remove(snapshot.id())) {
+            this.scheduleJournalFlush();
+        }
+    }
+
+    private record Fingerprint(long modification, long hash) {}
+
+    private record SaveRequest(RegistryOps<Tag> ops, InvRestoreConfig.Storage storage, List<Snapshot> unsaved, List<Snapshot> archivable, List<String> evictedIds, Optional<Map<UUID, PlayerPreferences>> preferences) {}
+
+    private record LegacyData(List<Snapshot> snapshots, Map<UUID, PlayerPreferences> preferences) {
+        public static final Codec<LegacyData> CODEC = RecordCodecBuilder.create(b -> b.group(
+                Snapshot.CODEC.listOf().fieldOf("snapshots").orElse(List.of()).forGetter(LegacyData::snapshots),
+                PREFERENCES_CODEC.fieldOf("player_preferences").orElse(Map.of()).forGetter(LegacyData::preferences)
+        ).apply(b, LegacyData::new));
     }
 }
@@ -0,0 +1,67 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestoreEntityEquipment;
+import io.github.misode.invrestore.InvRestoreInventory;
+import io.github.misode.invrestore.InvRestoreModificationTracker;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.List;
+
+/**
+ * A 64-bit hash over every slot of the inventory, armor, offhand and ender
+ * chest. Hashing the live slots is much cheaper than copying them, so it is
+ * used to detect snapshots that wouldn't contain anything new. When none of
+ * the containers were modified since the previous capture, its fingerprint
+ * is reused without looking at the items at all.
+ */
+public class InventoryFingerprint {
+    /** Never returned by {@link #modification}, stamps start at 1 */
+    public static final long UNKNOWN_MODIFICATION = 0;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /**
+     * The newest modification stamp of the inventory, equipment and ender
+     * chest of the player, which changes whenever any of them is modified.
+     */
+    public static long modification(ServerPlayer player) {
+        Inventory inv = player.getInventory();
+        return Math.max(
+                ((InvRestoreModificationTracker)inv).inv_restore$getModification(),
+                Math.max(
+                        ((InvRestoreModificationTracker)((InvRestoreInventory)inv).inv_restore$getEquipment()).inv_restore$getModification(),
+                        ((InvRestoreModificationTracker)player.getEnderChestInventory()).inv_restore$getModification()
+                )
+        );
+    }
+
+    public static long of(ServerPlayer player) {
+        Inventory inv = player.getInventory();
+        InvRestoreEntityEquipment equipment = (InvRestoreEntityEquipment)((InvRestoreInventory)inv).inv_restore$getEquipment();
+        long hash = 1;
+        hash = mix(hash, ((InvRestoreInventory)inv).inv_restore$getItems());
+        hash = mix(hash, equipment.inv_restore$getArmor());
+        hash = mix(hash, equipment.inv_restore$getOffhand());
+        hash = mix(hash, player.getEnderChestInventory().items);
+        return hash;
+    }
+
+    public static long of(SnapshotItems items) {
+        long hash = 1;
+        hash = mix(hash, items.inventory());
+        hash = mix(hash, items.armor());
+        hash = mix(hash, items.offhand());
+        hash = mix(hash, items.enderChest());
+        return hash;
+    }
+
+    private static long mix(long hash, List<ItemStack> items) {
+        hash = hash * MULTIPLIER + items.size();
+        for (ItemStack item : items) {
+            long slot = item.isEmpty() ? 0 : ItemStack.hashItemAndComponents(item) * 31L + item.getCount();
+            hash = hash * MULTIPLIER + slot;
+        }
+        return hash;
+    }
+}
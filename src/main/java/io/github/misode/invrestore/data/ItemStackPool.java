@@ -0,0 +1,171 @@
+package io.github.misode.invrestore.data;
+
+import net.minecraft.world.item.ItemStack;
+
+import java.util.*;
+
+/**
+ * Interns item stacks and slot lists by content, so that snapshots with
+ * identical items share the same objects. Entries are reference counted
+ * and dropped once no snapshot uses them anymore.
+ * Stacks returned from the pool must never be modified. Interned items must
+ * already be owned by a snapshot, like the copies made by
+ * {@link SnapshotItems#copyItems} or decoded stacks, since the first stack
+ * of its kind is kept as is. Live stacks of a player are never passed in.
+ * This only covers memory. On disk the contents of each snapshot stay self
+ * contained, see {@link SnapshotSegments} for how repeated items are kept
+ * small there.
+ */
+public class ItemStackPool {
+    private final Map<StackKey, Entry<ItemStack>> stacks = new HashMap<>();
+    private final Map<ListKey, Entry<List<ItemStack>>> lists = new HashMap<>();
+
+    public synchronized SnapshotItems intern(SnapshotItems items) {
+        return new SnapshotItems(
+                this.internList(items.inventory()),
+                this.internList(items.armor()),
+                this.internList(items.offhand()),
+                this.internList(items.enderChest())
+        );
+    }
+
+    public synchronized void release(SnapshotItems items) {
+        this.releaseList(items.inventory());
+        this.releaseList(items.armor());
+        this.releaseList(items.offhand());
+        this.releaseList(items.enderChest());
+    }
+
+    public synchronized int stackCount() {
+        return this.stacks.size();
+    }
+
+    public synchronized int listCount() {
+        return this.lists.size();
+    }
+
+    private List<ItemStack> internList(List<ItemStack> items) {
+        // Lists reused from a previous snapshot already consist of interned stacks
+        Entry<List<ItemStack>> existing = this.lists.get(new ListKey(items));
+        if (existing != null) {
+            existing.refs += 1;
+            return existing.value;
+        }
+        List<ItemStack> canonical = new ArrayList<>(items.size());
+        for (ItemStack item : items) {
+            canonical.add(item.isEmpty() ? ItemStack.EMPTY : this.internStack(item));
+        }
+        ListKey key = new ListKey(canonical);
+        Entry<List<ItemStack>> entry = this.lists.get(key);
+        if (entry != null) {
+            entry.refs += 1;
+            // The existing list already holds a reference to each stack
+            canonical.forEach(this::releaseStack);
+            return entry.value;
+        }
+        List<ItemStack> value = Collections.unmodifiableList(canonical);
+        this.lists.put(new ListKey(value), new Entry<>(value));
+        return value;
+    }
+
+    private void releaseList(List<ItemStack> items) {
+        ListKey key = new ListKey(items);
+        Entry<List<ItemStack>> entry = this.lists.get(key);
+        if (entry == null || entry.value != items) {
+            return;
+        }
+        entry.refs -= 1;
+        if (entry.refs <= 0) {
+            this.lists.remove(key);
+            items.forEach(this::releaseStack);
+        }
+    }
+
+    private ItemStack internStack(ItemStack item) {
+        StackKey key = new StackKey(item);
+        Entry<ItemStack> entry = this.stacks.get(key);
+        if (entry != null) {
+            entry.refs += 1;
+            return entry.value;
+        }
+        this.stacks.put(key, new Entry<>(item));
+        return item;
+    }
+
+    private void releaseStack(ItemStack item) {
+        if (item.isEmpty()) {
+            return;
+        }
+        StackKey key = new StackKey(item);
+        Entry<ItemStack> entry = this.stacks.get(key);
+        if (entry == null || entry.value != item) {
+            return;
+        }
+        entry.refs -= 1;
+        if (entry.refs <= 0) {
+            this.stacks.remove(key);
+        }
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private int refs = 1;
+
+        private Entry(T value) {
+            this.value = value;
+        }
+    }
+
+    private static final class StackKey {
+        private final ItemStack stack;
+        private final int hash;
+
+        private StackKey(ItemStack stack) {
+            this.stack = stack;
+            this.hash = 31 * ItemStack.hashItemAndComponents(stack) + stack.getCount();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StackKey other && this.hash == other.hash && ItemStack.matches(this.stack, other.stack);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /** Compares lists of already interned stacks by identity */
+    private static final class ListKey {
+        private final List<ItemStack> items;
+        private final int hash;
+
+        private ListKey(List<ItemStack> items) {
+            this.items = items;
+            int hash = 1;
+            for (ItemStack item : items) {
+                hash = 31 * hash + System.identityHashCode(item);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ListKey other) || this.hash != other.hash || this.items.size() != other.items.size()) {
+                return false;
+            }
+            for (int i = 0; i < this.items.size(); i += 1) {
+                if (this.items.get(i) != other.items.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Stores snapshots in an embedded MVStore file. Only the headers are loaded
+ * into memory, the contents are read back from disk when they are needed.
+ * Contents of new snapshots are dropped from memory once they are committed.
+ * Delta encoding is not supported, every snapshot is stored in full.
+ */
+public class MVSnapshotStore implements SnapshotStore {
+    public static final String FILE_NAME = "snapshots.mv.db";
+
+    private final Path directory;
+    private MVStore store;
+    private MVMap<String, byte[]> headers;
+    private MVMap<String, byte[]> contents;
+
+    public MVSnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public List<Snapshot> load(RegistryOps<Tag> ops, InvRestoreConfig.Loading loading) throws IOException {
+        this.openForAppend();
+        List<Snapshot> result = new ArrayList<>(this.headers.size());
+        for (Map.Entry<String, byte[]> entry : this.headers.entrySet()) {
+            String id = entry.getKey();
+            SnapshotStore.decodeHeader(SnapshotContents.fromBytes(entry.getValue()), () -> this.readContents(id), ops)
+                    .resultOrPartial(error -> InvRestore.LOGGER.error("Skipping snapshot {} in {}: {}", id, FILE_NAME, error))
+                    .ifPresent(result::add);
+        }
+        return result;
+    }
+
+    /**
+     * Opens the store for {@link #write} without reading the stored
+     * snapshots, for the offline import tool.
+     */
+    public void openForAppend() throws IOException {
+        Files.createDirectories(this.directory);
+        try {
+            this.store = new MVStore.Builder()
+                    .fileName(this.directory.resolve(FILE_NAME).toString())
+                    .compress()
+                    .autoCommitDisabled()
+                    .open();
+            this.headers = this.store.openMap("headers");
+            this.contents = this.store.openMap("contents");
+        } catch (MVStoreException e) {
+            throw new IOException("Failed to open " + FILE_NAME, e);
+        }
+    }
+
+    @Override
+    public void write(List<Snapshot> added, Collection<String> removedIds, RegistryOps<Tag> ops, InvRestoreConfig.Storage storage) throws IOException {
+        try {
+            for (String id : removedIds) {
+                this.headers.remove(id);
+                this.contents.remove(id);
+            }
+            for (Snapshot snapshot : added) {
+                long encodeStart = InvRestoreMetrics.SAVE_ENCODE.start();
+                CompoundTag header = SnapshotStore.encodeHeader(snapshot, ops);
+                CompoundTag items = (CompoundTag) SnapshotContents.CODEC.encodeStart(ops, snapshot.contents()).getOrThrow(IOException::new);
+                byte[] headerBytes = SnapshotContents.toBytes(header);
+                byte[] contentBytes = SnapshotContents.toBytes(items);
+                InvRestoreMetrics.SAVE_ENCODE.stop(encodeStart);
+                this.contents.put(snapshot.id(), contentBytes);
+                this.headers.put(snapshot.id(), headerBytes);
+                InvRestoreMetrics.BYTES_WRITTEN.addAndGet(headerBytes.length + contentBytes.length);
+            }
+            long writeStart = InvRestoreMetrics.SAVE_WRITE.start();
+            this.store.commit();
+            // The journal is truncated after this, so the commit has to be on disk
+            this.store.sync();
+            InvRestoreMetrics.SAVE_WRITE.stop(writeStart);
+        } catch (MVStoreException e) {
+            this.store.rollback();
+            throw new IOException("Failed to write to " + FILE_NAME, e);
+        }
+        for (Snapshot snapshot : added) {
+            snapshot.contents().offload(() -> this.readContents(snapshot.id()), ops);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.store != null) {
+            this.store.close();
+        }
+    }
+
+    @Override
+    public void forEachRaw(RegistryOps<Tag> ops, RawSnapshot.Sink sink) throws IOException {
+        Path path = this.directory.resolve(FILE_NAME);
+        if (!Files.exists(path)) {
+            return;
+        }
+        MVStore store;
+        try {
+            store = new MVStore.Builder().fileName(path.toString()).readOnly().open();
+        } catch (MVStoreException e) {
+            throw new IOException("Failed to open " + FILE_NAME, e);
+        }
+        try {
+            MVMap<String, byte[]> headers = store.openMap("headers");
+            MVMap<String, byte[]> contents = store.openMap("contents");
+            for (Map.Entry<String, byte[]> entry : headers.entrySet()) {
+                String id = entry.getKey();
+                Optional<Snapshot> header = SnapshotStore.decodeRawHeader(SnapshotContents.fromBytes(entry.getValue()), ops)
+                        .resultOrPartial(error -> InvRestore.LOGGER.error("Skipping snapshot {} in {}: {}", id, FILE_NAME, error));
+                byte[] items = contents.get(id);
+                if (header.isPresent() && items != null) {
+                    sink.accept(new RawSnapshot(header.get(), RawSnapshot.Items.fromNbt(SnapshotContents.fromBytes(items))));
+                }
+            }
+        } catch (MVStoreException e) {
+            throw new IOException("Failed to read " + FILE_NAME, e);
+        } finally {
+            store.close();
+        }
+    }
+
+    private CompoundTag readContents(String id) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = this.contents.get(id);
+        } catch (MVStoreException e) {
+            throw new IOException("Failed to read snapshot " + id + " from " + FILE_NAME, e);
+        }
+        if (bytes == null) {
+            throw new IOException("Contents of snapshot " + id + " are missing");
+        }
+        return SnapshotContents.fromBytes(bytes);
+    }
+}
@@ -0,0 +1,129 @@
+package io.github.misode.invrestore.data;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot with its items exactly as they are stored, without decoding
+ * them through the item codec. Used by the offline export tool, which has
+ * no access to the registries of the world. The header has empty contents.
+ */
+public record RawSnapshot(Snapshot header, Items items) {
+    public static final int INVENTORY_SIZE = 36;
+    public static final int ARMOR_SIZE = 4;
+    public static final int OFFHAND_SIZE = 1;
+    public static final int ENDER_CHEST_SIZE = 27;
+
+    /**
+     * Called for every snapshot that is read, can stop the export by
+     * throwing.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(RawSnapshot snapshot) throws IOException;
+    }
+
+    /**
+     * The encoded item stacks per slot, {@code null} for empty slots.
+     */
+    public record Items(List<Tag> inventory, List<Tag> armor, List<Tag> offhand, List<Tag> enderChest) {
+        public static Items empty() {
+            return new Items(slots(INVENTORY_SIZE), slots(ARMOR_SIZE), slots(OFFHAND_SIZE), slots(ENDER_CHEST_SIZE));
+        }
+
+        public static List<Tag> slots(int size) {
+            return new ArrayList<>(Collections.nCopies(size, null));
+        }
+
+        public List<List<Tag>> lists() {
+            return List.of(this.inventory, this.armor, this.offhand, this.enderChest);
+        }
+
+        /** Same as {@link SnapshotItems#stackCount}, the ender chest isn't counted */
+        public int stackCount() {
+            int count = 0;
+            for (List<Tag> slots : List.of(this.inventory, this.armor, this.offhand)) {
+                for (Tag item : slots) {
+                    if (item != null) {
+                        count += 1;
+                    }
+                }
+            }
+            return count;
+        }
+
+        /** Reads the NBT layout of {@link SnapshotItems#CODEC} */
+        public static Items fromNbt(CompoundTag tag) {
+            return new Items(
+                    fromNbt(tag.getListOrEmpty("inventory"), INVENTORY_SIZE),
+                    fromNbt(tag.getListOrEmpty("armor"), ARMOR_SIZE),
+                    fromNbt(tag.getListOrEmpty("offhand"), OFFHAND_SIZE),
+                    fromNbt(tag.getListOrEmpty("ender_chest"), ENDER_CHEST_SIZE));
+        }
+
+        /** Writes the NBT layout of {@link SnapshotItems#CODEC} */
+        public CompoundTag toNbt() {
+            CompoundTag tag = new CompoundTag();
+            tag.put("inventory", toNbt(this.inventory));
+            tag.put("armor", toNbt(this.armor));
+            tag.put("offhand", toNbt(this.offhand));
+            tag.put("ender_chest", toNbt(this.enderChest));
+            return tag;
+        }
+
+        /** Applies the changed slots of the NBT layout of {@link SnapshotDelta#CODEC} */
+        public Items applyNbtDelta(CompoundTag delta) {
+            return new Items(
+                    applyNbtDelta(this.inventory, delta.getListOrEmpty("inventory")),
+                    applyNbtDelta(this.armor, delta.getListOrEmpty("armor")),
+                    applyNbtDelta(this.offhand, delta.getListOrEmpty("offhand")),
+                    applyNbtDelta(this.enderChest, delta.getListOrEmpty("ender_chest")));
+        }
+
+        private static List<Tag> fromNbt(ListTag list, int size) {
+            List<Tag> slots = slots(size);
+            for (Tag entry : list) {
+                entry.asCompound().ifPresent(slot -> {
+                    int index = slot.getIntOr("slot", -1);
+                    Tag item = slot.get("item");
+                    if (index >= 0 && index < slots.size() && item != null) {
+                        slots.set(index, item);
+                    }
+                });
+            }
+            return slots;
+        }
+
+        private static ListTag toNbt(List<Tag> slots) {
+            ListTag list = new ListTag();
+            for (int i = 0; i < slots.size(); i += 1) {
+                if (slots.get(i) != null) {
+                    CompoundTag slot = new CompoundTag();
+                    slot.putInt("slot", i);
+                    slot.put("item", slots.get(i));
+                    list.add(slot);
+                }
+            }
+            return list;
+        }
+
+        private static List<Tag> applyNbtDelta(List<Tag> base, ListTag changes) {
+            List<Tag> slots = new ArrayList<>(base);
+            for (Tag entry : changes) {
+                entry.asCompound().ifPresent(slot -> {
+                    int index = slot.getIntOr("slot", -1);
+                    if (index >= 0 && index < slots.size()) {
+                        slots.set(index, slot.get("item"));
+                    }
+                });
+            }
+            return slots;
+        }
+    }
+}
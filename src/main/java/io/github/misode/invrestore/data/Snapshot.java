@@ -7,6 +7,7 @@ import com.mojang.serialization.codecs.RecordCodecBuilder;
 import io.github.misode.invrestore.InvRestore;
 import io.github.misode.invrestore.RandomBase62;
 import io.github.misode.invrestore.Styles;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
 import net.minecraft.core.MappedRegistry;
 import net.minecraft.core.Registry;
 import net.minecraft.core.UUIDUtil;
@@ -30,7 +31,7 @@ import java.time.Instant;
 import java.util.Locale;
 import java.util.UUID;
 
-public record Snapshot(String id, Event event, UUID playerUuid, String playerName, Instant time, ResourceKey<Level> dimension, Vec3 position, SnapshotItems contents) implements Comparable<Snapshot> {
+public record Snapshot(String id, Event event, UUID playerUuid, String playerName, Instant time, ResourceKey<Level> dimension, Vec3 position, SnapshotContents contents) implements Comparable<Snapshot> {
     public static final Codec<Snapshot> CODEC = RecordCodecBuilder.create(b -> b.group(
             Codec.STRING.fieldOf("id").forGetter(Snapshot::id),
             Event.CODEC.fieldOf("event").forGetter(Snapshot::event),
@@ -39,31 +40,34 @@ public record Snapshot(String id, Event event, UUID playerUuid, String playerNam
             ExtraCodecs.INSTANT_ISO8601.fieldOf("time").forGetter(Snapshot::time),
             Level.RESOURCE_KEY_CODEC.fieldOf("dimension").forGetter(Snapshot::dimension),
             Vec3.CODEC.fieldOf("position").forGetter(Snapshot::position),
-            SnapshotItems.CODEC.fieldOf("contents").forGetter(Snapshot::contents)
+            SnapshotContents.CODEC.fieldOf("contents").forGetter(Snapshot::contents)
     ).apply(b, Snapshot::new));
 
+    private static final ThreadLocal<DecimalFormat> POS_FORMAT = ThreadLocal.withInitial(() ->
+            new DecimalFormat("#.##", DecimalFormatSymbols.getInstance(Locale.ROOT)));
+
     public static Snapshot create(ServerPlayer player, Event event) {
+        long start = InvRestoreMetrics.CAPTURE.start();
         String id = RandomBase62.generate(12);
         UUID playerUuid = player.getUUID();
         String playerName = player.getGameProfile().name();
-        SnapshotItems contents = SnapshotItems.fromPlayer(player);
-        return new Snapshot(id, event, playerUuid, playerName, Instant.now(), player.level().dimension(), player.position(), contents);
-    }
-
-    public static Snapshot fromDeath(ServerPlayer player, DamageSource source) {
-        return Snapshot.create(player, new DeathEvent(source.getLocalizedDeathMessage(player).getString()));
+        SnapshotItems previous = InvRestore.findLatestItems(playerUuid).orElse(null);
+        SnapshotContents contents = SnapshotContents.of(SnapshotItems.fromPlayer(player, previous));
+        Snapshot snapshot = new Snapshot(id, event, playerUuid, playerName, Instant.now(), player.level().dimension(), player.position(), contents);
+        InvRestoreMetrics.CAPTURE.stop(start);
+        return snapshot;
     }
 
-    public static Snapshot fromJoin(ServerPlayer player) {
-        return Snapshot.create(player, JoinEvent.INSTANCE);
+    public static DeathEvent deathEvent(ServerPlayer player, DamageSource source) {
+        return new DeathEvent(source.getLocalizedDeathMessage(player).getString());
     }
 
-    public static Snapshot fromDisconnect(ServerPlayer player) {
-        return Snapshot.create(player, DisconnectEvent.INSTANCE);
+    public static LevelChangeEvent levelChangeEvent(ServerPlayer player, ResourceKey<Level> origin) {
+        return new LevelChangeEvent(origin, player.level().dimension());
     }
 
-    public static Snapshot fromLevelChange(ServerPlayer player, ResourceKey<Level> origin) {
-        return Snapshot.create(player, new LevelChangeEvent(origin, player.level().dimension()));
+    public Snapshot withContents(SnapshotContents contents) {
+        return new Snapshot(this.id, this.event, this.playerUuid, this.playerName, this.time, this.dimension, this.position, contents);
     }
 
     @Override
@@ -86,7 +90,7 @@ public record Snapshot(String id, Event event, UUID playerUuid, String playerNam
     }
 
     public String formatPos() {
-        DecimalFormat f = new DecimalFormat("#.##", DecimalFormatSymbols.getInstance(Locale.ROOT));
+        DecimalFormat f = POS_FORMAT.get();
         return f.format(this.position.x) + " " + f.format(this.position.y) + " " + f.format(this.position.z);
     }
 
@@ -0,0 +1,381 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Read-only archive of old snapshots in memory-mapped files. Every save that
+ * archives snapshots adds a new part file with only those snapshots. In each
+ * part a fixed-width index sorted by id hash is followed by the payloads,
+ * which are found by binary search and only decoded when they are needed.
+ * Parts are never modified in place, once most of a part is dead its live
+ * snapshots are merged into a new part and the old one is deleted.
+ */
+public class SnapshotArchive implements SnapshotStore {
+    private static final int MAGIC = 0x49524152;
+    private static final int ARCHIVE_VERSION = 1;
+    private static final String PREFIX = "archive-";
+    private static final String EXTENSION = ".dat";
+    private static final int HEADER_SIZE = 12;
+    /** Id hash, player UUID, time, payload offset and payload length */
+    private static final int ENTRY_SIZE = 8 + 16 + 8 + 8 + 4;
+    /** Above this many parts the smallest ones are merged as well */
+    private static final int MAX_PARTS = 64;
+
+    private final Path directory;
+    /** Parts from oldest to newest, only accessed from the I/O thread */
+    private final List<Part> parts = new ArrayList<>();
+    /** Part of each archived snapshot that hasn't been evicted */
+    private final Map<String, Part> partById = new HashMap<>();
+    /** Mappings of the parts from newest to oldest, read from any thread */
+    private volatile List<Mapping> mappings = List.of();
+    private int lastPart = -1;
+
+    public SnapshotArchive(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public List<Snapshot> load(RegistryOps<Tag> ops, InvRestoreConfig.Loading loading) throws IOException {
+        Files.createDirectories(this.directory);
+        List<Snapshot> result = new ArrayList<>();
+        for (Map.Entry<Integer, Path> file : this.listParts().entrySet()) {
+            this.lastPart = Math.max(this.lastPart, file.getKey());
+            Mapping mapping = Mapping.open(file.getValue());
+            Part part = new Part(mapping);
+            // A newer part has the only valid copy of a snapshot
+            for (int i = 0; i < mapping.count; i += 1) {
+                String id = mapping.id(i);
+                if (this.partById.containsKey(id)) {
+                    continue;
+                }
+                int index = i;
+                SnapshotStore.decodeHeader(mapping.header(i), () -> this.readContents(id), ops)
+                        .resultOrPartial(error -> InvRestore.LOGGER.error("Skipping snapshot {} in {}: {}", id, mapping.path.getFileName(), error))
+                        .ifPresent(snapshot -> {
+                            part.live.put(id, index);
+                            this.partById.put(id, part);
+                            result.add(snapshot);
+                        });
+            }
+            this.parts.addFirst(part);
+        }
+        this.publishMappings();
+        return result;
+    }
+
+    /**
+     * Writes a new part with the added snapshots and the live snapshots of
+     * parts that are mostly dead, then offloads the contents of the added
+     * snapshots to it. Removals alone only cause a merge once most of a part
+     * is dead.
+     */
+    @Override
+    public void write(List<Snapshot> added, Collection<String> removedIds, RegistryOps<Tag> ops, InvRestoreConfig.Storage storage) throws IOException {
+        removedIds.forEach(this::release);
+        added.forEach(snapshot -> this.release(snapshot.id()));
+        List<Part> merged = new ArrayList<>();
+        List<Part> kept = new ArrayList<>();
+        for (Part part : this.parts) {
+            (part.live.size() * 2 < part.mapping.count ? merged : kept).add(part);
+        }
+        if (kept.size() >= MAX_PARTS) {
+            kept.sort(Comparator.comparingInt(part -> part.live.size()));
+            merged.addAll(kept.subList(0, kept.size() - MAX_PARTS + 1));
+        }
+        if (added.isEmpty() && merged.isEmpty()) {
+            return;
+        }
+
+        long encodeStart = InvRestoreMetrics.SAVE_ENCODE.start();
+        List<Entry> entries = new ArrayList<>(added.size());
+        for (Part part : merged) {
+            Mapping mapping = part.mapping;
+            part.live.forEach((id, index) -> entries.add(new Entry(id, mapping.hash(index), mapping.player(index), mapping.time(index), mapping.length(index), mapping, index, null)));
+        }
+        for (Snapshot snapshot : added) {
+            byte[] payload = encodePayload(snapshot, ops);
+            entries.add(new Entry(snapshot.id(), hash(snapshot.id()), snapshot.playerUuid(), snapshot.time().toEpochMilli(), payload.length, null, -1, payload));
+        }
+        entries.sort(Comparator.comparingLong(Entry::hash));
+        InvRestoreMetrics.SAVE_ENCODE.stop(encodeStart);
+
+        if (!entries.isEmpty()) {
+            Part part = this.writePart(entries);
+            for (int i = 0; i < entries.size(); i += 1) {
+                part.live.put(entries.get(i).id, i);
+                this.partById.put(entries.get(i).id, part);
+            }
+            this.parts.add(part);
+        }
+        this.parts.removeAll(merged);
+        this.publishMappings();
+        for (Snapshot snapshot : added) {
+            snapshot.contents().offload(() -> this.readContents(snapshot.id()), ops);
+        }
+        merged.forEach(part -> deleteQuietly(part.mapping.path));
+    }
+
+    private void release(String id) {
+        Part part = this.partById.remove(id);
+        if (part != null) {
+            part.live.remove(id);
+        }
+    }
+
+    private Part writePart(List<Entry> entries) throws IOException {
+        long size = HEADER_SIZE + (long) entries.size() * ENTRY_SIZE + entries.stream().mapToLong(Entry::length).sum();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Archive part would exceed the maximum size of 2 GiB");
+        }
+        int number = this.lastPart + 1;
+        Path path = this.directory.resolve(PREFIX + String.format(Locale.ROOT, "%06d", number) + EXTENSION);
+        long writeStart = InvRestoreMetrics.SAVE_WRITE.start();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(ARCHIVE_VERSION);
+            out.writeInt(entries.size());
+            long offset = HEADER_SIZE + (long) entries.size() * ENTRY_SIZE;
+            for (Entry entry : entries) {
+                out.writeLong(entry.hash);
+                out.writeLong(entry.player.getMostSignificantBits());
+                out.writeLong(entry.player.getLeastSignificantBits());
+                out.writeLong(entry.time);
+                out.writeLong(offset);
+                out.writeInt(entry.length);
+                offset += entry.length;
+            }
+            for (Entry entry : entries) {
+                out.write(entry.payload != null ? entry.payload : entry.source.payload(entry.index));
+            }
+            out.flush();
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(path);
+            throw e;
+        }
+        InvRestoreMetrics.SAVE_WRITE.stop(writeStart);
+        InvRestoreMetrics.BYTES_WRITTEN.addAndGet(size);
+        this.lastPart = number;
+        return new Part(Mapping.open(path));
+    }
+
+    private void publishMappings() {
+        this.mappings = this.parts.reversed().stream().map(part -> part.mapping).toList();
+    }
+
+    @Override
+    public void close() {
+        this.mappings = List.of();
+    }
+
+    @Override
+    public void forEachRaw(RegistryOps<Tag> ops, RawSnapshot.Sink sink) throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+        // Newest first, so the valid copy of a snapshot is seen first
+        for (Path path : this.listParts().values()) {
+            Mapping mapping = Mapping.open(path);
+            for (int i = 0; i < mapping.count; i += 1) {
+                String id = mapping.id(i);
+                Optional<Snapshot> header = SnapshotStore.decodeRawHeader(mapping.header(i), ops)
+                        .resultOrPartial(error -> InvRestore.LOGGER.error("Skipping snapshot {} in {}: {}", id, mapping.path.getFileName(), error));
+                if (header.isPresent()) {
+                    sink.accept(new RawSnapshot(header.get(), RawSnapshot.Items.fromNbt(mapping.contents(i))));
+                }
+            }
+        }
+    }
+
+    /** Lists the part files from newest to oldest */
+    private NavigableMap<Integer, Path> listParts() throws IOException {
+        return this.listFiles().descendingMap();
+    }
+
+    private TreeMap<Integer, Path> listFiles() throws IOException {
+        TreeMap<Integer, Path> result = new TreeMap<>();
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(EXTENSION)) {
+                    try {
+                        result.put(Integer.parseInt(name.substring(PREFIX.length(), name.length() - EXTENSION.length())), path);
+                    } catch (NumberFormatException ignored) {}
+                }
+            });
+        }
+        return result;
+    }
+
+    private CompoundTag readContents(String id) throws IOException {
+        for (Mapping mapping : this.mappings) {
+            int index = mapping.find(id);
+            if (index >= 0) {
+                return mapping.contents(index);
+            }
+        }
+        throw new IOException("Snapshot " + id + " is not in the archive");
+    }
+
+    private static byte[] encodePayload(Snapshot snapshot, RegistryOps<Tag> ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] id = snapshot.id().getBytes(StandardCharsets.UTF_8);
+        out.writeShort(id.length);
+        out.write(id);
+        byte[] header = SnapshotContents.toBytes(SnapshotStore.encodeHeader(snapshot, ops));
+        out.writeInt(header.length);
+        out.write(header);
+        NbtIo.write((CompoundTag) SnapshotContents.CODEC.encodeStart(ops, snapshot.contents()).getOrThrow(IOException::new), out);
+        return bytes.toByteArray();
+    }
+
+    /** 64-bit FNV-1a, ids are short so collisions are rare but still handled */
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i += 1) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Can fail while the file is still mapped, it is retried on the next load
+            InvRestore.LOGGER.warn("Failed to delete old archive part {}", path.getFileName());
+        }
+    }
+
+    private record Entry(String id, long hash, UUID player, long time, int length, Mapping source, int index, byte[] payload) {}
+
+    private static class Part {
+        private final Mapping mapping;
+        /** Position in the mapping of each snapshot that hasn't been evicted */
+        private final Map<String, Integer> live = new HashMap<>();
+
+        private Part(Mapping mapping) {
+            this.mapping = mapping;
+        }
+    }
+
+    /**
+     * A mapped archive file. Only absolute reads are used on the buffer, so it
+     * can be shared between threads.
+     */
+    private record Mapping(Path path, MappedByteBuffer buffer, int count) {
+        private static Mapping open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Archive is too large: " + path.getFileName());
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                    throw new IOException("Not a snapshot archive: " + path.getFileName());
+                }
+                int version = buffer.getInt(4);
+                if (version != ARCHIVE_VERSION) {
+                    throw new IOException("Unsupported archive version " + version + " in " + path.getFileName());
+                }
+                int count = buffer.getInt(8);
+                if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE > buffer.limit()) {
+                    throw new IOException("Truncated archive index in " + path.getFileName());
+                }
+                return new Mapping(path, buffer, count);
+            }
+        }
+
+        private int entry(int index) {
+            return HEADER_SIZE + index * ENTRY_SIZE;
+        }
+
+        private long hash(int index) {
+            return this.buffer.getLong(this.entry(index));
+        }
+
+        private UUID player(int index) {
+            return new UUID(this.buffer.getLong(this.entry(index) + 8), this.buffer.getLong(this.entry(index) + 16));
+        }
+
+        private long time(int index) {
+            return this.buffer.getLong(this.entry(index) + 24);
+        }
+
+        private int offset(int index) {
+            return (int) this.buffer.getLong(this.entry(index) + 32);
+        }
+
+        private int length(int index) {
+            return this.buffer.getInt(this.entry(index) + 40);
+        }
+
+        private int find(String id) {
+            long hash = SnapshotArchive.hash(id);
+            int low = 0;
+            int high = this.count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (this.hash(mid) < hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            for (int i = low; i < this.count && this.hash(i) == hash; i += 1) {
+                if (this.id(i).equals(id)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private String id(int index) {
+            int offset = this.offset(index);
+            byte[] id = new byte[Short.toUnsignedInt(this.buffer.getShort(offset))];
+            this.buffer.get(offset + 2, id);
+            return new String(id, StandardCharsets.UTF_8);
+        }
+
+        private CompoundTag header(int index) throws IOException {
+            int start = this.offset(index) + 2 + Short.toUnsignedInt(this.buffer.getShort(this.offset(index)));
+            byte[] header = new byte[this.buffer.getInt(start)];
+            this.buffer.get(start + 4, header);
+            return SnapshotContents.fromBytes(header);
+        }
+
+        private CompoundTag contents(int index) throws IOException {
+            int offset = this.offset(index);
+            int start = offset + 2 + Short.toUnsignedInt(this.buffer.getShort(offset));
+            start += 4 + this.buffer.getInt(start);
+            byte[] contents = new byte[offset + this.length(index) - start];
+            this.buffer.get(start, contents);
+            return SnapshotContents.fromBytes(contents);
+        }
+
+        private byte[] payload(int index) {
+            byte[] payload = new byte[this.length(index)];
+            this.buffer.get(this.offset(index), payload);
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package io.github.misode.invrestore.data;
+
+import com.mojang.serialization.Dynamic;
+import com.mojang.serialization.DynamicOps;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.NonNullList;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.Identifier;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.util.datafix.DataFixers;
+import net.minecraft.util.datafix.fixes.References;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of snapshot frames. Headers are written field by
+ * field without any names, strings like identifiers and player names are
+ * stored once per frame, and only the item stacks go through the vanilla
+ * codec. Every frame stores the data version it was written with, the item
+ * stacks of frames from an older version are upgraded with the data fixer
+ * when the frame is read. Records and their contents are length-prefixed,
+ * so a broken record can be skipped and contents can be kept as bytes and
+ * decoded lazily.
+ */
+public final class SnapshotBinaryFormat {
+    public static final int VERSION = 1;
+    private static final int FULL = 0;
+    private static final int DELTA = 1;
+
+    private SnapshotBinaryFormat() {}
+
+    public static final class Writer {
+        private final DynamicOps<Tag> ops;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private int count = 0;
+
+        public Writer(DynamicOps<Tag> ops) {
+            this.ops = ops;
+        }
+
+        public void write(Snapshot snapshot) throws IOException {
+            byte[] contents = snapshot.contents().binaryItems();
+            this.writeRecord(snapshot, FULL, contents != null ? contents : encodeItems(snapshot.contents().read(), this.ops));
+        }
+
+        public void writeDelta(Snapshot snapshot, SnapshotDelta delta) throws IOException {
+            this.writeRecord(snapshot, DELTA, encodeDelta(delta, this.ops));
+        }
+
+        public byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(this.bytes.size() + this.strings.size() * 16 + 16);
+            DataOutputStream out = new DataOutputStream(result);
+            out.writeInt(VERSION);
+            out.writeInt(currentDataVersion());
+            writeVarInt(out, this.strings.size());
+            for (String value : this.strings.keySet()) {
+                out.writeUTF(value);
+            }
+            writeVarInt(out, this.count);
+            this.bytes.writeTo(out);
+            return result.toByteArray();
+        }
+
+        private void writeRecord(Snapshot snapshot, int kind, byte[] contents) throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(contents.length + 96);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeUTF(snapshot.id());
+            this.writeString(out, Snapshot.EventType.REGISTRY.getKey(snapshot.event().getType()).toString());
+            switch (snapshot.event()) {
+                case Snapshot.DeathEvent death -> out.writeUTF(death.deathMessage());
+                case Snapshot.LevelChangeEvent change -> {
+                    this.writeString(out, change.origin().identifier().toString());
+                    this.writeString(out, change.destination().identifier().toString());
+                }
+                default -> {}
+            }
+            out.writeLong(snapshot.playerUuid().getMostSignificantBits());
+            out.writeLong(snapshot.playerUuid().getLeastSignificantBits());
+            this.writeString(out, snapshot.playerName());
+            out.writeLong(snapshot.time().toEpochMilli());
+            this.writeString(out, snapshot.dimension().identifier().toString());
+            out.writeDouble(snapshot.position().x);
+            out.writeDouble(snapshot.position().y);
+            out.writeDouble(snapshot.position().z);
+            out.writeByte(kind);
+            writeVarInt(out, snapshot.contents().stackCount());
+            writeVarInt(out, contents.length);
+            out.write(contents);
+
+            writeVarInt(this.out, record.size());
+            record.writeTo(this.out);
+            this.count += 1;
+        }
+
+        private void writeString(DataOutput out, String value) throws IOException {
+            writeVarInt(out, this.strings.computeIfAbsent(value, k -> this.strings.size()));
+        }
+    }
+
+    /**
+     * Reads the records of a frame one by one. A record that can't be decoded
+     * is reported through {@link Entry#error} and doesn't affect the others.
+     */
+    public static final class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+        private final int dataVersion;
+        private int remaining;
+
+        public Reader(byte[] frame) throws IOException {
+            this.in = new DataInputStream(new ByteArrayInputStream(frame));
+            int version = this.in.readInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported binary snapshot version " + version);
+            }
+            this.dataVersion = this.in.readInt();
+            int strings = readVarInt(this.in);
+            for (int i = 0; i < strings; i += 1) {
+                this.strings.add(this.in.readUTF());
+            }
+            this.remaining = readVarInt(this.in);
+        }
+
+        public boolean hasNext() {
+            return this.remaining > 0;
+        }
+
+        public Entry next() throws IOException {
+            this.remaining -= 1;
+            byte[] record = new byte[readVarInt(this.in)];
+            this.in.readFully(record);
+            try {
+                return this.parse(record);
+            } catch (IOException e) {
+                return new Entry(null, false, 0, null, "Skipping snapshot: " + e.getMessage());
+            }
+        }
+
+        private Entry parse(byte[] record) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            String id = in.readUTF();
+            String eventType = this.readString(in);
+            Identifier eventKey = Identifier.tryParse(eventType);
+            Snapshot.EventType<?> type = eventKey == null ? null : Snapshot.EventType.REGISTRY.getValue(eventKey);
+            Snapshot.Event event;
+            if (type == Snapshot.Event.DEATH) {
+                event = new Snapshot.DeathEvent(in.readUTF());
+            } else if (type == Snapshot.Event.LEVEL_CHANGE) {
+                event = new Snapshot.LevelChangeEvent(level(this.readString(in)), level(this.readString(in)));
+            } else if (type == Snapshot.Event.JOIN) {
+                event = Snapshot.JoinEvent.INSTANCE;
+            } else if (type == Snapshot.Event.DISCONNECT) {
+                event = Snapshot.DisconnectEvent.INSTANCE;
+            } else if (type == Snapshot.Event.AUTO_SAVE) {
+                event = Snapshot.AutoSaveEvent.INSTANCE;
+            } else {
+                return new Entry(null, false, 0, null, "Skipping snapshot " + id + ": unknown event type " + eventType);
+            }
+            UUID playerUuid = new UUID(in.readLong(), in.readLong());
+            String playerName = this.readString(in);
+            Instant time = Instant.ofEpochMilli(in.readLong());
+            ResourceKey<Level> dimension = level(this.readString(in));
+            Vec3 position = new Vec3(in.readDouble(), in.readDouble(), in.readDouble());
+            boolean delta = in.readByte() == DELTA;
+            int stackCount = readVarInt(in);
+            byte[] contents = new byte[readVarInt(in)];
+            in.readFully(contents);
+            // Upgraded right away, so the contents can be decoded lazily like any other
+            if (this.dataVersion < currentDataVersion()) {
+                contents = delta ? upgradeDelta(contents, this.dataVersion) : upgradeItems(contents, this.dataVersion);
+            }
+            Snapshot snapshot = new Snapshot(id, event, playerUuid, playerName, time, dimension, position, SnapshotContents.EMPTY);
+            return new Entry(snapshot, delta, stackCount, contents, null);
+        }
+
+        private String readString(DataInput in) throws IOException {
+            int index = readVarInt(in);
+            if (index >= this.strings.size()) {
+                throw new IOException("Invalid string reference " + index);
+            }
+            return this.strings.get(index);
+        }
+
+        private static ResourceKey<Level> level(String id) throws IOException {
+            Identifier identifier = Identifier.tryParse(id);
+            if (identifier == null) {
+                throw new IOException("Invalid dimension " + id);
+            }
+            return ResourceKey.create(Registries.DIMENSION, identifier);
+        }
+    }
+
+    /**
+     * A decoded snapshot header, its contents are still encoded and are
+     * either complete or a delta against the previous snapshot of the player.
+     */
+    public record Entry(Snapshot snapshot, boolean delta, int stackCount, byte[] contents, String error) {}
+
+    public static byte[] encodeItems(SnapshotItems items, DynamicOps<Tag> ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (List<ItemStack> list : List.of(items.inventory(), items.armor(), items.offhand(), items.enderChest())) {
+            writeVarInt(out, list.size());
+            writeVarInt(out, (int) list.stream().filter(item -> !item.isEmpty()).count());
+            for (int i = 0; i < list.size(); i += 1) {
+                if (!list.get(i).isEmpty()) {
+                    out.writeByte(i);
+                    writeItem(out, list.get(i), ops);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static SnapshotItems decodeItems(byte[] bytes, DynamicOps<Tag> ops) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<List<ItemStack>> lists = new ArrayList<>(4);
+        for (int l = 0; l < 4; l += 1) {
+            List<ItemStack> items = NonNullList.withSize(readVarInt(in), ItemStack.EMPTY);
+            int count = readVarInt(in);
+            for (int i = 0; i < count; i += 1) {
+                int slot = in.readUnsignedByte();
+                ItemStack item = readItem(in, ops);
+                if (slot < items.size()) {
+                    items.set(slot, item);
+                }
+            }
+            lists.add(items);
+        }
+        return new SnapshotItems(lists.get(0), lists.get(1), lists.get(2), lists.get(3));
+    }
+
+    public static byte[] encodeDelta(SnapshotDelta delta, DynamicOps<Tag> ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (List<SnapshotDelta.Slot> slots : List.of(delta.inventory(), delta.armor(), delta.offhand(), delta.enderChest())) {
+            writeVarInt(out, slots.size());
+            for (SnapshotDelta.Slot slot : slots) {
+                out.writeByte(slot.index());
+                out.writeBoolean(!slot.item().isEmpty());
+                if (!slot.item().isEmpty()) {
+                    writeItem(out, slot.item(), ops);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static SnapshotDelta decodeDelta(int stackCount, byte[] bytes, DynamicOps<Tag> ops) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<List<SnapshotDelta.Slot>> lists = new ArrayList<>(4);
+        for (int l = 0; l < 4; l += 1) {
+            int count = readVarInt(in);
+            List<SnapshotDelta.Slot> slots = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                int index = in.readUnsignedByte();
+                slots.add(new SnapshotDelta.Slot(index, in.readBoolean() ? readItem(in, ops) : ItemStack.EMPTY));
+            }
+            lists.add(slots);
+        }
+        return new SnapshotDelta(stackCount, lists.get(0), lists.get(1), lists.get(2), lists.get(3));
+    }
+
+    /** Same layout as {@link #encodeItems}, from item stacks that are already encoded */
+    public static byte[] encodeRawItems(RawSnapshot.Items items) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (List<Tag> slots : items.lists()) {
+            writeVarInt(out, slots.size());
+            writeVarInt(out, (int) slots.stream().filter(Objects::nonNull).count());
+            for (int i = 0; i < slots.size(); i += 1) {
+                if (slots.get(i) != null) {
+                    out.writeByte(i);
+                    NbtIo.writeAnyTag(slots.get(i), out);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Reads the layout of {@link #encodeItems} without decoding the item stacks */
+    public static RawSnapshot.Items decodeRawItems(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<List<Tag>> lists = new ArrayList<>(4);
+        for (int l = 0; l < 4; l += 1) {
+            List<Tag> slots = RawSnapshot.Items.slots(readVarInt(in));
+            int count = readVarInt(in);
+            for (int i = 0; i < count; i += 1) {
+                int slot = in.readUnsignedByte();
+                Tag item = NbtIo.readAnyTag(in, NbtAccounter.unlimitedHeap());
+                if (slot < slots.size()) {
+                    slots.set(slot, item);
+                }
+            }
+            lists.add(slots);
+        }
+        return new RawSnapshot.Items(lists.get(0), lists.get(1), lists.get(2), lists.get(3));
+    }
+
+    /** Applies the layout of {@link #encodeDelta} without decoding the item stacks */
+    public static RawSnapshot.Items applyRawDelta(RawSnapshot.Items base, byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<List<Tag>> lists = new ArrayList<>(4);
+        for (List<Tag> baseSlots : base.lists()) {
+            List<Tag> slots = new ArrayList<>(baseSlots);
+            int count = readVarInt(in);
+            for (int i = 0; i < count; i += 1) {
+                int index = in.readUnsignedByte();
+                Tag item = in.readBoolean() ? NbtIo.readAnyTag(in, NbtAccounter.unlimitedHeap()) : null;
+                if (index < slots.size()) {
+                    slots.set(index, item);
+                }
+            }
+            lists.add(slots);
+        }
+        return new RawSnapshot.Items(lists.get(0), lists.get(1), lists.get(2), lists.get(3));
+    }
+
+    /** Upgrades the item stacks in the layout of {@link #encodeItems} from an older data version */
+    private static byte[] upgradeItems(byte[] bytes, int dataVersion) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length);
+        DataOutputStream out = new DataOutputStream(result);
+        for (int l = 0; l < 4; l += 1) {
+            writeVarInt(out, readVarInt(in));
+            int count = readVarInt(in);
+            writeVarInt(out, count);
+            for (int i = 0; i < count; i += 1) {
+                out.writeByte(in.readUnsignedByte());
+                upgradeItem(in, out, dataVersion);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /** Upgrades the item stacks in the layout of {@link #encodeDelta} from an older data version */
+    private static byte[] upgradeDelta(byte[] bytes, int dataVersion) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length);
+        DataOutputStream out = new DataOutputStream(result);
+        for (int l = 0; l < 4; l += 1) {
+            int count = readVarInt(in);
+            writeVarInt(out, count);
+            for (int i = 0; i < count; i += 1) {
+                out.writeByte(in.readUnsignedByte());
+                boolean present = in.readBoolean();
+                out.writeBoolean(present);
+                if (present) {
+                    upgradeItem(in, out, dataVersion);
+                }
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static void upgradeItem(DataInput in, DataOutput out, int dataVersion) throws IOException {
+        Tag item = NbtIo.readAnyTag(in, NbtAccounter.unlimitedHeap());
+        Tag upgraded = DataFixers.getDataFixer()
+                .update(References.ITEM_STACK, new Dynamic<>(NbtOps.INSTANCE, item), dataVersion, currentDataVersion())
+                .getValue();
+        NbtIo.writeAnyTag(upgraded, out);
+    }
+
+    private static int currentDataVersion() {
+        return SharedConstants.getCurrentVersion().dataVersion().version();
+    }
+
+    private static void writeItem(DataOutput out, ItemStack item, DynamicOps<Tag> ops) throws IOException {
+        NbtIo.writeAnyTag(ItemStack.CODEC.encodeStart(ops, item).getOrThrow(IOException::new), out);
+    }
+
+    private static ItemStack readItem(DataInput in, DynamicOps<Tag> ops) throws IOException {
+        return ItemStack.CODEC.parse(ops, NbtIo.readAnyTag(in, NbtAccounter.unlimitedHeap())).getOrThrow(IOException::new);
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt is too long");
+    }
+}
@@ -0,0 +1,200 @@
+package io.github.misode.invrestore.data;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import net.jpountz.lz4.LZ4Factory;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of segment frames. Every compressed frame starts with the
+ * algorithm that was used, so frames written with different settings can
+ * be read back. Zstd can use a dictionary trained from the items of existing
+ * snapshots, it is stored next to the segments and frames refer to it by id.
+ */
+public class SnapshotCompression {
+    private static final int NONE = 0;
+    private static final int GZIP = 1;
+    private static final int LZ4 = 2;
+    private static final int ZSTD = 3;
+    private static final int ZSTD_DICTIONARY = 4;
+    private static final int ZSTD_LEVEL = 3;
+    private static final String DICTIONARY_PREFIX = "dictionary-";
+    private static final String DICTIONARY_EXTENSION = ".zdict";
+    private static final int DICTIONARY_SIZE = 64 * 1024;
+    private static final int MIN_SAMPLES = 256;
+    private static final int MAX_SAMPLE_BYTES = DICTIONARY_SIZE * 100;
+
+    private final Path directory;
+    /** Frames of different segments are decompressed in parallel when loading */
+    private final Map<Integer, ZstdDictDecompress> decompressors = new ConcurrentHashMap<>();
+    private ZstdDictCompress compressor;
+    private int compressorId;
+    private boolean trainingFailed = false;
+
+    public SnapshotCompression(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Prepares the newest dictionary for compression, older dictionaries are
+     * only loaded when a frame refers to them.
+     */
+    public void load() throws IOException {
+        Path newest = null;
+        FileTime newestTime = null;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (Path path : files.toList()) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(DICTIONARY_PREFIX) && name.endsWith(DICTIONARY_EXTENSION)) {
+                    FileTime time = Files.getLastModifiedTime(path);
+                    if (newestTime == null || time.compareTo(newestTime) > 0) {
+                        newest = path;
+                        newestTime = time;
+                    }
+                }
+            }
+        }
+        if (newest != null) {
+            byte[] dictionary = Files.readAllBytes(newest);
+            this.compressor = new ZstdDictCompress(dictionary, ZSTD_LEVEL);
+            this.compressorId = (int) Zstd.getDictIdFromDict(dictionary);
+        }
+    }
+
+    public boolean needsDictionary(InvRestoreConfig.Storage storage) {
+        return storage.compression() == InvRestoreConfig.Compression.ZSTD && storage.zstdDictionary()
+                && this.compressor == null && !this.trainingFailed;
+    }
+
+    /**
+     * Trains a dictionary from the encoded items of snapshots. Nothing happens
+     * when there are too few samples yet, so it is tried again on a later save.
+     */
+    public void train(List<Snapshot> snapshots, RegistryOps<Tag> ops) throws IOException {
+        if (snapshots.size() < MIN_SAMPLES) {
+            return;
+        }
+        ZstdDictTrainer trainer = new ZstdDictTrainer(MAX_SAMPLE_BYTES, DICTIONARY_SIZE);
+        // Newest first, those are the most similar to what will be written next
+        for (int i = snapshots.size() - 1; i >= 0; i -= 1) {
+            SnapshotContents contents = snapshots.get(i).contents();
+            byte[] sample = contents.binaryItems();
+            if (sample == null) {
+                sample = SnapshotBinaryFormat.encodeItems(contents.read(), ops);
+            }
+            if (!trainer.addSample(sample)) {
+                break;
+            }
+        }
+        byte[] dictionary;
+        try {
+            dictionary = trainer.trainSamples();
+        } catch (RuntimeException e) {
+            this.trainingFailed = true;
+            InvRestore.LOGGER.error("Failed to train a compression dictionary, continuing without one", e);
+            return;
+        }
+        int id = (int) Zstd.getDictIdFromDict(dictionary);
+        Path path = this.directory.resolve(DICTIONARY_PREFIX + String.format(Locale.ROOT, "%08x", id) + DICTIONARY_EXTENSION);
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tempPath, dictionary);
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.compressor = new ZstdDictCompress(dictionary, ZSTD_LEVEL);
+        this.compressorId = id;
+        this.decompressors.put(id, new ZstdDictDecompress(dictionary));
+        InvRestore.LOGGER.info("Trained a {} KiB compression dictionary from {} snapshots", dictionary.length / 1024, snapshots.size());
+    }
+
+    public void compress(byte[] data, InvRestoreConfig.Storage storage, DataOutputStream out) throws IOException {
+        switch (storage.compression()) {
+            case NONE -> {
+                out.writeByte(NONE);
+                out.write(data);
+            }
+            case GZIP -> {
+                out.writeByte(GZIP);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    gzip.write(data);
+                }
+                bytes.writeTo(out);
+            }
+            case LZ4 -> {
+                out.writeByte(LZ4);
+                out.writeInt(data.length);
+                out.write(LZ4Factory.fastestInstance().fastCompressor().compress(data));
+            }
+            case ZSTD -> {
+                if (storage.zstdDictionary() && this.compressor != null) {
+                    out.writeByte(ZSTD_DICTIONARY);
+                    out.writeInt(this.compressorId);
+                    out.writeInt(data.length);
+                    out.write(Zstd.compress(data, this.compressor));
+                } else {
+                    out.writeByte(ZSTD);
+                    out.writeInt(data.length);
+                    out.write(Zstd.compress(data, ZSTD_LEVEL));
+                }
+            }
+        }
+    }
+
+    public byte[] decompress(byte[] frame, int offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, offset, frame.length - offset));
+        int algorithm = in.readUnsignedByte();
+        return switch (algorithm) {
+            case NONE -> in.readAllBytes();
+            case GZIP -> {
+                try (GZIPInputStream gzip = new GZIPInputStream(in)) {
+                    yield gzip.readAllBytes();
+                }
+            }
+            case LZ4 -> {
+                int length = in.readInt();
+                yield LZ4Factory.fastestInstance().fastDecompressor().decompress(in.readAllBytes(), length);
+            }
+            case ZSTD -> {
+                int length = in.readInt();
+                yield Zstd.decompress(in.readAllBytes(), length);
+            }
+            case ZSTD_DICTIONARY -> {
+                ZstdDictDecompress dictionary = this.dictionary(in.readInt());
+                int length = in.readInt();
+                yield Zstd.decompress(in.readAllBytes(), dictionary, length);
+            }
+            default -> throw new IOException("Unknown compression " + algorithm);
+        };
+    }
+
+    private ZstdDictDecompress dictionary(int id) throws IOException {
+        ZstdDictDecompress dictionary = this.decompressors.get(id);
+        if (dictionary == null) {
+            Path path = this.directory.resolve(DICTIONARY_PREFIX + String.format(Locale.ROOT, "%08x", id) + DICTIONARY_EXTENSION);
+            if (!Files.exists(path)) {
+                throw new IOException("Missing compression dictionary " + path.getFileName());
+            }
+            dictionary = new ZstdDictDecompress(Files.readAllBytes(path));
+            ZstdDictDecompress existing = this.decompressors.putIfAbsent(id, dictionary);
+            if (existing != null) {
+                dictionary = existing;
+            }
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,274 @@
+package io.github.misode.invrestore.data;
+
+import com.mojang.datafixers.util.Pair;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.DynamicOps;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.Tag;
+import net.minecraft.world.item.ItemStack;
+
+import java.io.*;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The items of a snapshot. When loaded from NBT the items are kept as
+ * uncompressed NBT bytes, or left on disk, and only decoded the first time
+ * they are needed. Contents read from the binary format are kept in that
+ * format instead. Delta encoded contents additionally keep a reference to
+ * their base. Offloaded contents are read from disk every time and never
+ * keep their items in memory. New contents can be encoded ahead of the save
+ * on a worker thread, the bytes are dropped once they have been written.
+ */
+public final class SnapshotContents {
+    public static final Codec<SnapshotContents> CODEC = new Codec<>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> DataResult<Pair<SnapshotContents, T>> decode(DynamicOps<T> ops, T input) {
+            if (input instanceof CompoundTag tag) {
+                try {
+                    return DataResult.success(Pair.of(SnapshotContents.lazy(tag, (DynamicOps<Tag>) ops), ops.empty()));
+                } catch (IOException e) {
+                    return DataResult.error(() -> "Failed to store snapshot contents: " + e.getMessage());
+                }
+            }
+            return SnapshotItems.CODEC.decode(ops, input).map(pair -> pair.mapFirst(SnapshotContents::of));
+        }
+
+        @Override
+        public <T> DataResult<T> encode(SnapshotContents input, DynamicOps<T> ops, T prefix) {
+            return input.encode(ops, prefix);
+        }
+    };
+
+    public static final SnapshotContents EMPTY = SnapshotContents.of(new SnapshotItems(List.of(), List.of(), List.of(), List.of()));
+
+    private final int stackCount;
+    private SnapshotItems items;
+    private Source source;
+    private DynamicOps<Tag> ops;
+    private SnapshotContents base;
+    private ItemStackPool pool;
+    private boolean offloaded;
+    private byte[] binary;
+    private byte[] encoded;
+
+    private SnapshotContents(int stackCount, SnapshotItems items, Source source, DynamicOps<Tag> ops, SnapshotContents base) {
+        this.stackCount = stackCount;
+        this.items = items;
+        this.source = source;
+        this.ops = ops;
+        this.base = base;
+    }
+
+    public static SnapshotContents of(SnapshotItems items) {
+        return new SnapshotContents(items.stackCount(), items, null, null, null);
+    }
+
+    public static SnapshotContents delta(SnapshotContents base, CompoundTag tag, DynamicOps<Tag> ops) throws IOException {
+        int stackCount = tag.getIntOr("stack_count", 0);
+        return new SnapshotContents(stackCount, null, bytesSource(tag), ops, base);
+    }
+
+    /**
+     * Offloaded contents that are read from the source each time they are
+     * needed, without keeping any of the data or the decoded items in memory.
+     */
+    public static SnapshotContents stored(int stackCount, Source source, DynamicOps<Tag> ops) {
+        SnapshotContents contents = new SnapshotContents(stackCount, null, source, ops, null);
+        contents.offloaded = true;
+        return contents;
+    }
+
+    /**
+     * Contents in the binary format, either complete or a delta against the
+     * base when it is given.
+     */
+    public static SnapshotContents binary(int stackCount, byte[] bytes, DynamicOps<Tag> ops, SnapshotContents base) {
+        SnapshotContents contents = new SnapshotContents(stackCount, null, null, ops, base);
+        contents.binary = bytes;
+        return contents;
+    }
+
+    private static SnapshotContents lazy(CompoundTag tag, DynamicOps<Tag> ops) throws IOException {
+        int stackCount = tag.getListOrEmpty("inventory").size()
+                + tag.getListOrEmpty("armor").size()
+                + tag.getListOrEmpty("offhand").size();
+        return new SnapshotContents(stackCount, null, bytesSource(tag), ops, null);
+    }
+
+    public int stackCount() {
+        return this.stackCount;
+    }
+
+    public synchronized boolean isLoaded() {
+        return this.items != null;
+    }
+
+    public synchronized SnapshotItems get() {
+        if (this.items != null) {
+            return this.items;
+        }
+        SnapshotItems items = this.decode();
+        if (this.offloaded) {
+            return items;
+        }
+        this.items = this.pool == null ? items : this.pool.intern(items);
+        this.source = null;
+        this.ops = null;
+        this.base = null;
+        this.binary = null;
+        return this.items;
+    }
+
+    /**
+     * Returns the items without keeping them in memory when they haven't
+     * been decoded yet, for re-encoding contents that are rarely viewed.
+     */
+    synchronized SnapshotItems read() {
+        return this.items != null ? this.items : this.decode();
+    }
+
+    /**
+     * The encoded items when they are still in the complete binary format,
+     * or when they have been encoded ahead of the save
+     */
+    synchronized byte[] binaryItems() {
+        if (this.items != null) {
+            return this.encoded;
+        }
+        return this.base == null ? this.binary : null;
+    }
+
+    /**
+     * Encodes the items in the binary format so the save doesn't have to.
+     * Called on a worker thread, the lock isn't held while encoding since
+     * the items of a snapshot never change.
+     */
+    public void preEncode(DynamicOps<Tag> ops) throws IOException {
+        SnapshotItems items;
+        synchronized (this) {
+            if (this.items == null || this.encoded != null) {
+                return;
+            }
+            items = this.items;
+        }
+        byte[] encoded = SnapshotBinaryFormat.encodeItems(items, ops);
+        synchronized (this) {
+            if (this.items == items) {
+                this.encoded = encoded;
+            }
+        }
+    }
+
+    /** Drops the bytes from {@link #preEncode} once the contents have been saved */
+    public synchronized void releaseEncoded() {
+        this.encoded = null;
+    }
+
+    /**
+     * Drops the items from memory once they have been written to the source,
+     * afterwards they behave like {@link #stored} contents.
+     */
+    public synchronized void offload(Source source, DynamicOps<Tag> ops) {
+        if (this.pool != null && this.items != null) {
+            this.pool.release(this.items);
+        }
+        this.items = null;
+        this.source = source;
+        this.ops = ops;
+        this.base = null;
+        this.binary = null;
+        this.encoded = null;
+        this.offloaded = true;
+    }
+
+    /**
+     * Shares the items with other snapshots through the pool. Contents that
+     * haven't been decoded yet are interned once they are decoded.
+     */
+    public synchronized void attach(ItemStackPool pool) {
+        if (this.pool != null) {
+            return;
+        }
+        this.pool = pool;
+        if (this.items != null) {
+            this.items = pool.intern(this.items);
+        }
+    }
+
+    public synchronized void detach() {
+        if (this.pool != null && this.items != null) {
+            this.pool.release(this.items);
+        }
+        this.pool = null;
+    }
+
+    public Stream<ItemStack> inventoryItems() {
+        return this.get().inventoryItems();
+    }
+
+    public Stream<ItemStack> allItems() {
+        return this.get().allItems();
+    }
+
+    private synchronized <T> DataResult<T> encode(DynamicOps<T> ops, T prefix) {
+        if (this.items != null || this.base != null || this.binary != null) {
+            return SnapshotItems.CODEC.encode(this.read(), ops, prefix);
+        }
+        // Still undecoded, so copy the NBT over instead of decoding the items
+        return DataResult.success(NbtOps.INSTANCE.convertTo(ops, this.readRaw()));
+    }
+
+    public static byte[] toBytes(CompoundTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtIo.write(tag, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    public static CompoundTag fromBytes(byte[] bytes) throws IOException {
+        return NbtIo.read(new DataInputStream(new ByteArrayInputStream(bytes)), NbtAccounter.unlimitedHeap());
+    }
+
+    private static Source bytesSource(CompoundTag tag) throws IOException {
+        byte[] bytes = toBytes(tag);
+        return () -> fromBytes(bytes);
+    }
+
+    /**
+     * The base is read without keeping its items, otherwise viewing the end
+     * of a delta chain would keep every snapshot before it decoded, even
+     * after they are evicted.
+     */
+    private SnapshotItems decode() {
+        if (this.binary != null) {
+            try {
+                return this.base == null
+                        ? SnapshotBinaryFormat.decodeItems(this.binary, this.ops)
+                        : SnapshotBinaryFormat.decodeDelta(this.stackCount, this.binary, this.ops).applyTo(this.base.read());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return this.base == null
+                ? SnapshotItems.CODEC.parse(this.ops, this.readRaw()).getOrThrow()
+                : SnapshotDelta.CODEC.parse(this.ops, this.readRaw()).getOrThrow().applyTo(this.base.read());
+    }
+
+    private CompoundTag readRaw() {
+        try {
+            return this.source.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Source {
+        CompoundTag read() throws IOException;
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.misode.invrestore.data;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.Optional;
+
+/**
+ * Position of a snapshot in time order, ties are broken by id. Used to seek
+ * pages of the snapshot list, so they stay stable while snapshots are added.
+ */
+public record SnapshotCursor(Instant time, String id) implements Comparable<SnapshotCursor> {
+    private static final Comparator<SnapshotCursor> ORDER = Comparator.comparing(SnapshotCursor::time)
+            .thenComparing(SnapshotCursor::id);
+
+    public static SnapshotCursor of(Snapshot snapshot) {
+        return new SnapshotCursor(snapshot.time(), snapshot.id());
+    }
+
+    public String encode() {
+        return this.time + "/" + this.id;
+    }
+
+    public static Optional<SnapshotCursor> decode(String cursor) {
+        int separator = cursor.indexOf('/');
+        if (separator < 0) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new SnapshotCursor(Instant.parse(cursor.substring(0, separator)), cursor.substring(separator + 1)));
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public int compareTo(SnapshotCursor other) {
+        return ORDER.compare(this, other);
+    }
+}
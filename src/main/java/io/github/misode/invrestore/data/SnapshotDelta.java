@@ -0,0 +1,81 @@
+package io.github.misode.invrestore.data;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.core.NonNullList;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The slots that changed between a player's previous snapshot and the next one.
+ * An empty item means the slot was cleared.
+ */
+public record SnapshotDelta(int stackCount, List<Slot> inventory, List<Slot> armor, List<Slot> offhand, List<Slot> enderChest) {
+    public static final Codec<SnapshotDelta> CODEC = RecordCodecBuilder.create(b -> b.group(
+            Codec.INT.fieldOf("stack_count").forGetter(SnapshotDelta::stackCount),
+            Slot.CODEC.listOf().optionalFieldOf("inventory", List.of()).forGetter(SnapshotDelta::inventory),
+            Slot.CODEC.listOf().optionalFieldOf("armor", List.of()).forGetter(SnapshotDelta::armor),
+            Slot.CODEC.listOf().optionalFieldOf("offhand", List.of()).forGetter(SnapshotDelta::offhand),
+            Slot.CODEC.listOf().optionalFieldOf("ender_chest", List.of()).forGetter(SnapshotDelta::enderChest)
+    ).apply(b, SnapshotDelta::new));
+
+    public static SnapshotDelta between(SnapshotItems base, SnapshotItems items) {
+        return new SnapshotDelta(
+                items.stackCount(),
+                diff(base.inventory(), items.inventory()),
+                diff(base.armor(), items.armor()),
+                diff(base.offhand(), items.offhand()),
+                diff(base.enderChest(), items.enderChest())
+        );
+    }
+
+    public SnapshotItems applyTo(SnapshotItems base) {
+        return new SnapshotItems(
+                apply(base.inventory(), this.inventory),
+                apply(base.armor(), this.armor),
+                apply(base.offhand(), this.offhand),
+                apply(base.enderChest(), this.enderChest)
+        );
+    }
+
+    private static List<Slot> diff(List<ItemStack> base, List<ItemStack> items) {
+        if (base == items) {
+            return List.of();
+        }
+        List<Slot> slots = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += 1) {
+            ItemStack item = items.get(i);
+            ItemStack baseItem = i < base.size() ? base.get(i) : ItemStack.EMPTY;
+            // Interned stacks are shared, so most unchanged slots are caught by the identity check
+            if (item != baseItem && !ItemStack.matches(item, baseItem)) {
+                slots.add(new Slot(i, item));
+            }
+        }
+        return slots;
+    }
+
+    private static List<ItemStack> apply(List<ItemStack> base, List<Slot> slots) {
+        if (slots.isEmpty()) {
+            return base;
+        }
+        List<ItemStack> items = NonNullList.withSize(base.size(), ItemStack.EMPTY);
+        for (int i = 0; i < base.size(); i += 1) {
+            items.set(i, base.get(i));
+        }
+        for (Slot slot : slots) {
+            if (slot.index < items.size()) {
+                items.set(slot.index, slot.item);
+            }
+        }
+        return items;
+    }
+
+    record Slot(int index, ItemStack item) {
+        public static final Codec<Slot> CODEC = RecordCodecBuilder.create(b -> b.group(
+                Codec.intRange(0, 255).fieldOf("slot").forGetter(Slot::index),
+                ItemStack.CODEC.optionalFieldOf("item", ItemStack.EMPTY).forGetter(Slot::item)
+        ).apply(b, Slot::new));
+    }
+}
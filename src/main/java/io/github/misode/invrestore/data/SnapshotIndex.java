@@ -0,0 +1,278 @@
+package io.github.misode.invrestore.data;
+
+import java.util.*;
+
+/**
+ * In-memory lookup structures over all stored snapshots. Per-player lists
+ * are kept ordered from oldest to newest, the lists by player name are sorted
+ * maps so pages can be found by seeking to a cursor. All snapshots are also
+ * kept sorted by time, so the oldest one can be evicted even when snapshots
+ * arrive out of order. The per-event buckets are in insertion order, which
+ * follows time order as long as snapshots are added chronologically.
+ */
+public class SnapshotIndex {
+    private final Map<String, Snapshot> byId = new HashMap<>();
+    private final TreeMap<SnapshotCursor, Snapshot> byTime = new TreeMap<>();
+    private final Map<UUID, Deque<Snapshot>> byPlayerUuid = new HashMap<>();
+    private final Map<String, PlayerEntry> byPlayerName = new HashMap<>();
+    private final Map<Snapshot.EventType<?>, LinkedHashMap<String, Snapshot>> byEventType = new HashMap<>();
+
+    public int size() {
+        return this.byId.size();
+    }
+
+    /** All snapshots from oldest to newest */
+    public Collection<Snapshot> all() {
+        return Collections.unmodifiableCollection(this.byTime.values());
+    }
+
+    /**
+     * Snapshots from the cursor, inclusive, or from the oldest without one, up
+     * to the end cursor, exclusive. Ordered from oldest to newest.
+     */
+    public Collection<Snapshot> range(Optional<SnapshotCursor> from, SnapshotCursor to) {
+        if (from.isPresent() && from.get().compareTo(to) >= 0) {
+            return List.of();
+        }
+        NavigableMap<SnapshotCursor, Snapshot> range = from.isPresent()
+                ? this.byTime.subMap(from.get(), true, to, false)
+                : this.byTime.headMap(to, false);
+        return Collections.unmodifiableCollection(range.values());
+    }
+
+    public Optional<Snapshot> get(String id) {
+        return Optional.ofNullable(this.byId.get(id));
+    }
+
+    public Set<String> ids() {
+        return Collections.unmodifiableSet(this.byId.keySet());
+    }
+
+    public Set<String> playerNames() {
+        return Collections.unmodifiableSet(this.byPlayerName.keySet());
+    }
+
+    public Set<UUID> playerUuids() {
+        return Collections.unmodifiableSet(this.byPlayerUuid.keySet());
+    }
+
+    public Collection<Snapshot> byPlayer(UUID playerUuid) {
+        return Collections.unmodifiableCollection(this.byPlayerUuid.getOrDefault(playerUuid, new ArrayDeque<>()));
+    }
+
+    public Collection<Snapshot> byEventType(Snapshot.EventType<?> type) {
+        LinkedHashMap<String, Snapshot> snapshots = this.byEventType.get(type);
+        return snapshots == null ? List.of() : Collections.unmodifiableCollection(snapshots.values());
+    }
+
+    public int count(UUID playerUuid) {
+        Deque<Snapshot> snapshots = this.byPlayerUuid.get(playerUuid);
+        return snapshots == null ? 0 : snapshots.size();
+    }
+
+    public Optional<Snapshot> oldest() {
+        Map.Entry<SnapshotCursor, Snapshot> oldest = this.byTime.firstEntry();
+        return oldest == null ? Optional.empty() : Optional.of(oldest.getValue());
+    }
+
+    public Optional<Snapshot> oldest(UUID playerUuid) {
+        Deque<Snapshot> snapshots = this.byPlayerUuid.get(playerUuid);
+        return snapshots == null ? Optional.empty() : Optional.ofNullable(snapshots.peekFirst());
+    }
+
+    public Optional<Snapshot> latest(UUID playerUuid) {
+        Deque<Snapshot> snapshots = this.byPlayerUuid.get(playerUuid);
+        return snapshots == null ? Optional.empty() : Optional.ofNullable(snapshots.peekLast());
+    }
+
+    public boolean add(Snapshot snapshot) {
+        if (this.byId.putIfAbsent(snapshot.id(), snapshot) != null) {
+            return false;
+        }
+        this.byTime.put(SnapshotCursor.of(snapshot), snapshot);
+        insertSorted(this.byPlayerUuid.computeIfAbsent(snapshot.playerUuid(), k -> new ArrayDeque<>()), snapshot);
+        this.byPlayerName.computeIfAbsent(snapshot.playerName(), k -> new PlayerEntry()).add(snapshot);
+        this.byEventType.computeIfAbsent(snapshot.event().getType(), k -> new LinkedHashMap<>()).put(snapshot.id(), snapshot);
+        return true;
+    }
+
+    public boolean remove(Snapshot snapshot) {
+        if (!this.byId.remove(snapshot.id(), snapshot)) {
+            return false;
+        }
+        this.byTime.remove(SnapshotCursor.of(snapshot));
+        removeFrom(this.byPlayerUuid, snapshot.playerUuid(), snapshot);
+        LinkedHashMap<String, Snapshot> eventSnapshots = this.byEventType.get(snapshot.event().getType());
+        if (eventSnapshots != null) {
+            eventSnapshots.remove(snapshot.id());
+            if (eventSnapshots.isEmpty()) {
+                this.byEventType.remove(snapshot.event().getType());
+            }
+        }
+        PlayerEntry entry = this.byPlayerName.get(snapshot.playerName());
+        if (entry != null && entry.remove(snapshot)) {
+            this.byPlayerName.remove(snapshot.playerName());
+        }
+        return true;
+    }
+
+    /**
+     * Adds snapshots that can be older than the ones already indexed, like
+     * those loaded in the background. They have to be sorted from oldest to
+     * newest and are merged in by time, snapshots that are already indexed
+     * are ignored. Returns the snapshots that were added.
+     */
+    public List<Snapshot> merge(List<Snapshot> snapshots) {
+        List<Snapshot> added = new ArrayList<>(snapshots.size());
+        for (Snapshot snapshot : snapshots) {
+            if (!this.byId.containsKey(snapshot.id())) {
+                added.add(snapshot);
+            }
+        }
+        if (added.isEmpty()) {
+            return added;
+        }
+        for (Snapshot snapshot : added) {
+            this.byId.put(snapshot.id(), snapshot);
+            this.byTime.put(SnapshotCursor.of(snapshot), snapshot);
+        }
+
+        Map<UUID, List<Snapshot>> byPlayerUuid = new HashMap<>();
+        Map<Snapshot.EventType<?>, List<Snapshot>> byEventType = new HashMap<>();
+        for (Snapshot snapshot : added) {
+            byPlayerUuid.computeIfAbsent(snapshot.playerUuid(), k -> new ArrayList<>()).add(snapshot);
+            byEventType.computeIfAbsent(snapshot.event().getType(), k -> new ArrayList<>()).add(snapshot);
+            this.byPlayerName.computeIfAbsent(snapshot.playerName(), k -> new PlayerEntry()).add(snapshot);
+        }
+        byPlayerUuid.forEach((playerUuid, playerSnapshots) -> {
+            Deque<Snapshot> existing = this.byPlayerUuid.getOrDefault(playerUuid, new ArrayDeque<>());
+            this.byPlayerUuid.put(playerUuid, new ArrayDeque<>(mergeByTime(existing, playerSnapshots)));
+        });
+        byEventType.forEach((type, typeSnapshots) -> {
+            LinkedHashMap<String, Snapshot> existing = this.byEventType.computeIfAbsent(type, k -> new LinkedHashMap<>());
+            List<Snapshot> merged = mergeByTime(existing.values(), typeSnapshots);
+            existing.clear();
+            merged.forEach(snapshot -> existing.put(snapshot.id(), snapshot));
+        });
+        return added;
+    }
+
+    private static List<Snapshot> mergeByTime(Collection<Snapshot> existing, List<Snapshot> added) {
+        List<Snapshot> result = new ArrayList<>(existing.size() + added.size());
+        Iterator<Snapshot> iterator = existing.iterator();
+        Snapshot next = iterator.hasNext() ? iterator.next() : null;
+        for (Snapshot snapshot : added) {
+            while (next != null && !next.time().isAfter(snapshot.time())) {
+                result.add(next);
+                next = iterator.hasNext() ? iterator.next() : null;
+            }
+            result.add(snapshot);
+        }
+        if (next != null) {
+            result.add(next);
+        }
+        iterator.forEachRemaining(result::add);
+        return result;
+    }
+
+    public int count(String playerName, Optional<Snapshot.EventType<?>> eventType) {
+        NavigableMap<SnapshotCursor, Snapshot> snapshots = this.lookup(playerName, eventType);
+        return snapshots == null ? 0 : snapshots.size();
+    }
+
+    /**
+     * Returns up to {@code limit} snapshots of a player that are older than
+     * the cursor, or the newest ones without a cursor, newest first.
+     */
+    public List<Snapshot> findOlder(String playerName, Optional<Snapshot.EventType<?>> eventType, Optional<SnapshotCursor> cursor, int limit) {
+        NavigableMap<SnapshotCursor, Snapshot> snapshots = this.lookup(playerName, eventType);
+        if (snapshots == null) {
+            return List.of();
+        }
+        NavigableMap<SnapshotCursor, Snapshot> older = cursor.isPresent() ? snapshots.headMap(cursor.get(), false) : snapshots;
+        return take(older.descendingMap().values(), limit);
+    }
+
+    /**
+     * Returns up to {@code limit} snapshots of a player that are directly
+     * newer than the cursor, newest first.
+     */
+    public List<Snapshot> findNewer(String playerName, Optional<Snapshot.EventType<?>> eventType, SnapshotCursor cursor, int limit) {
+        NavigableMap<SnapshotCursor, Snapshot> snapshots = this.lookup(playerName, eventType);
+        if (snapshots == null) {
+            return List.of();
+        }
+        return take(snapshots.tailMap(cursor, false).values(), limit).reversed();
+    }
+
+    /** Never asks the views for their size, that would walk the whole range */
+    private static List<Snapshot> take(Collection<Snapshot> snapshots, int limit) {
+        List<Snapshot> result = new ArrayList<>(limit);
+        Iterator<Snapshot> iterator = snapshots.iterator();
+        while (iterator.hasNext() && result.size() < limit) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    private NavigableMap<SnapshotCursor, Snapshot> lookup(String playerName, Optional<Snapshot.EventType<?>> eventType) {
+        PlayerEntry entry = this.byPlayerName.get(playerName);
+        if (entry == null) {
+            return null;
+        }
+        return eventType.isPresent() ? entry.byEventType.get(eventType.get()) : entry.all;
+    }
+
+    private static <K> void removeFrom(Map<K, Deque<Snapshot>> map, K key, Snapshot snapshot) {
+        Deque<Snapshot> snapshots = map.get(key);
+        if (snapshots == null) {
+            return;
+        }
+        // Evictions usually remove the oldest snapshot
+        if (snapshots.peekFirst() == snapshot) {
+            snapshots.pollFirst();
+        } else {
+            snapshots.removeFirstOccurrence(snapshot);
+        }
+        if (snapshots.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private static void insertSorted(Deque<Snapshot> snapshots, Snapshot snapshot) {
+        if (snapshots.isEmpty() || !snapshots.peekLast().time().isAfter(snapshot.time())) {
+            snapshots.addLast(snapshot);
+            return;
+        }
+        Deque<Snapshot> newer = new ArrayDeque<>();
+        while (!snapshots.isEmpty() && snapshots.peekLast().time().isAfter(snapshot.time())) {
+            newer.addFirst(snapshots.pollLast());
+        }
+        snapshots.addLast(snapshot);
+        snapshots.addAll(newer);
+    }
+
+    private static class PlayerEntry {
+        private final NavigableMap<SnapshotCursor, Snapshot> all = new TreeMap<>();
+        private final Map<Snapshot.EventType<?>, NavigableMap<SnapshotCursor, Snapshot>> byEventType = new HashMap<>();
+
+        private void add(Snapshot snapshot) {
+            SnapshotCursor cursor = SnapshotCursor.of(snapshot);
+            this.all.put(cursor, snapshot);
+            this.byEventType.computeIfAbsent(snapshot.event().getType(), k -> new TreeMap<>()).put(cursor, snapshot);
+        }
+
+        private boolean remove(Snapshot snapshot) {
+            SnapshotCursor cursor = SnapshotCursor.of(snapshot);
+            this.all.remove(cursor);
+            NavigableMap<SnapshotCursor, Snapshot> snapshots = this.byEventType.get(snapshot.event().getType());
+            if (snapshots != null) {
+                snapshots.remove(cursor);
+                if (snapshots.isEmpty()) {
+                    this.byEventType.remove(snapshot.event().getType());
+                }
+            }
+            return this.all.isEmpty();
+        }
+    }
+}
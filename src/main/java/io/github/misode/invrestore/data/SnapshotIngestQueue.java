@@ -0,0 +1,80 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded multi-producer, single-consumer queue of captured snapshots that
+ * still have to be added to the database. Producers never lock, a slot is
+ * reserved with a compare-and-set on the size. When the queue is full the
+ * snapshot is either dropped, or replaces a queued snapshot of the same
+ * player and event type. Deaths are never dropped and may exceed the bound.
+ */
+public class SnapshotIngestQueue {
+    private final Queue<Request> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Returns whether the snapshot was queued, possibly by replacing another one */
+    public boolean offer(Request request, InvRestoreConfig.Ingestion config) {
+        if (request.snapshot.event().getType() == Snapshot.Event.DEATH) {
+            this.add(request, this.size.incrementAndGet());
+            return true;
+        }
+        while (true) {
+            int size = this.size.get();
+            if (size >= config.queueCapacity()) {
+                break;
+            }
+            if (this.size.compareAndSet(size, size + 1)) {
+                this.add(request, size + 1);
+                return true;
+            }
+        }
+        if (config.overflow() == InvRestoreConfig.Overflow.COALESCE) {
+            for (Request queued : this.queue) {
+                if (queued.snapshot.playerUuid().equals(request.snapshot.playerUuid())
+                        && queued.snapshot.event().getType() == request.snapshot.event().getType()
+                        && this.queue.remove(queued)) {
+                    this.queue.add(request);
+                    InvRestoreMetrics.INGEST_COALESCED.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        InvRestoreMetrics.INGEST_DROPPED.incrementAndGet();
+        return false;
+    }
+
+    /** Only called by the consumer */
+    public Request poll() {
+        Request request = this.queue.poll();
+        if (request != null) {
+            this.size.decrementAndGet();
+            InvRestoreMetrics.INGEST_WAIT.stop(request.queuedAt);
+        }
+        return request;
+    }
+
+    public int size() {
+        return this.size.get();
+    }
+
+    private void add(Request request, int size) {
+        this.queue.add(request);
+        InvRestoreMetrics.INGEST_MAX_DEPTH.accumulateAndGet(size, Math::max);
+    }
+
+    /**
+     * A captured snapshot with the container modification stamp and inventory
+     * fingerprint it was taken at, and how to deduplicate it.
+     */
+    public record Request(Snapshot snapshot, long modification, long fingerprint, InvRestoreConfig.Deduplication.Mode mode, long queuedAt) {
+        public static Request of(Snapshot snapshot, long modification, long fingerprint, InvRestoreConfig.Deduplication.Mode mode) {
+            return new Request(snapshot, modification, fingerprint, mode, InvRestoreMetrics.INGEST_WAIT.start());
+        }
+    }
+}
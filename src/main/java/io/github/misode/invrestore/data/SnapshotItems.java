@@ -9,8 +9,11 @@ import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.entity.player.Inventory;
 import net.minecraft.world.inventory.PlayerEnderChestContainer;
 import net.minecraft.world.item.ItemStack;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Stream;
 
@@ -22,18 +25,45 @@ public record SnapshotItems(List<ItemStack> inventory, List<ItemStack> armor, Li
             itemListCodec(27).fieldOf("ender_chest").forGetter(SnapshotItems::enderChest)
     ).apply(b, SnapshotItems::new));
 
-    public static SnapshotItems fromPlayer(ServerPlayer player) {
+    public static SnapshotItems fromPlayer(ServerPlayer player, @Nullable SnapshotItems previous) {
         Inventory inv = player.getInventory();
         InvRestoreEntityEquipment equipment = (InvRestoreEntityEquipment)((InvRestoreInventory)inv).inv_restore$getEquipment();
         PlayerEnderChestContainer end = player.getEnderChestInventory();
         return new SnapshotItems(
-                ((InvRestoreInventory)inv).inv_restore$getItems().stream().map(ItemStack::copy).toList(),
-                equipment.inv_restore$getArmor().stream().map(ItemStack::copy).toList(),
-                equipment.inv_restore$getOffhand().stream().map(ItemStack::copy).toList(),
-                end.items.stream().map(ItemStack::copy).toList()
+                copyItems(((InvRestoreInventory)inv).inv_restore$getItems(), previous == null ? null : previous.inventory),
+                copyItems(equipment.inv_restore$getArmor(), previous == null ? null : previous.armor),
+                copyItems(equipment.inv_restore$getOffhand(), previous == null ? null : previous.offhand),
+                copyItems(end.items, previous == null ? null : previous.enderChest)
         );
     }
 
+    /**
+     * Copies the items, reusing the stacks of the previous snapshot for slots
+     * that didn't change. Stored stacks are never modified, so they can be shared.
+     */
+    static List<ItemStack> copyItems(List<ItemStack> items, @Nullable List<ItemStack> previous) {
+        if (previous != null && previous.size() != items.size()) {
+            previous = null;
+        }
+        ItemStack[] result = new ItemStack[items.size()];
+        boolean unchanged = previous != null;
+        for (int i = 0; i < result.length; i += 1) {
+            ItemStack item = items.get(i);
+            if (item.isEmpty()) {
+                result[i] = ItemStack.EMPTY;
+            } else if (previous != null && ItemStack.matches(item, previous.get(i))) {
+                result[i] = previous.get(i);
+            } else {
+                result[i] = item.copy();
+            }
+            unchanged = unchanged && result[i] == previous.get(i);
+        }
+        if (unchanged) {
+            return previous;
+        }
+        return Collections.unmodifiableList(Arrays.asList(result));
+    }
+
     public int stackCount() {
         return this.inventoryItems()
                 .mapToInt(item -> 1)
@@ -0,0 +1,81 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the most recently used items of snapshots that aren't decoded in
+ * memory, so paging through the same player doesn't decode them every time.
+ * The items are read without keeping them in the snapshot, otherwise every
+ * previewed snapshot would hold on to its items until it is evicted.
+ * Bounded by the number of snapshots and by the total number of stacks.
+ */
+public class SnapshotItemsCache {
+    private final LinkedHashMap<String, SnapshotItems> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long stacks = 0;
+
+    public SnapshotItems get(Snapshot snapshot) {
+        SnapshotContents contents = snapshot.contents();
+        if (contents.isLoaded()) {
+            return contents.get();
+        }
+        synchronized (this) {
+            SnapshotItems items = this.entries.get(snapshot.id());
+            if (items != null) {
+                InvRestoreMetrics.CACHE_HITS.incrementAndGet();
+                return items;
+            }
+        }
+        InvRestoreMetrics.CACHE_MISSES.incrementAndGet();
+        SnapshotItems items = contents.read();
+        this.put(snapshot.id(), items);
+        return items;
+    }
+
+    public synchronized void invalidate(String id) {
+        SnapshotItems items = this.entries.remove(id);
+        if (items != null) {
+            this.stacks -= weight(items);
+        }
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public synchronized long stacks() {
+        return this.stacks;
+    }
+
+    private synchronized void put(String id, SnapshotItems items) {
+        InvRestoreConfig.Cache config = InvRestore.config.cache();
+        int weight = weight(items);
+        if (config.maxEntries() == 0 || weight > config.maxStacks()) {
+            return;
+        }
+        SnapshotItems previous = this.entries.put(id, items);
+        if (previous != null) {
+            this.stacks -= weight(previous);
+        }
+        this.stacks += weight;
+        Iterator<Map.Entry<String, SnapshotItems>> iterator = this.entries.entrySet().iterator();
+        while ((this.entries.size() > config.maxEntries() || this.stacks > config.maxStacks()) && iterator.hasNext()) {
+            this.stacks -= weight(iterator.next().getValue());
+            iterator.remove();
+        }
+    }
+
+    private static int weight(SnapshotItems items) {
+        return (int) Stream.of(items.inventory(), items.armor(), items.offhand(), items.enderChest())
+                .flatMap(List::stream)
+                .filter(item -> !item.isEmpty())
+                .count();
+    }
+}
@@ -0,0 +1,214 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of snapshots that haven't been saved to the store yet.
+ * Added and removed snapshots are queued from the server thread and written
+ * in batches by the I/O thread with a single fsync per batch. After a save
+ * the snapshots it contained are dropped from the journal again.
+ * Each record is a type, the payload length, a CRC32 and the payload, a
+ * torn record at the end of the file is ignored.
+ */
+public class SnapshotJournal {
+    public static final String FILE_NAME = "journal.dat";
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    private final Path path;
+    private final RegistryOps<Tag> ops;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    /** Only accessed from the I/O thread after loading */
+    private final LinkedHashMap<String, Snapshot> entries = new LinkedHashMap<>();
+    private FileChannel channel;
+
+    public SnapshotJournal(Path directory, RegistryOps<Tag> ops) {
+        this.path = directory.resolve(FILE_NAME);
+        this.ops = ops;
+    }
+
+    /**
+     * Replays the journal and returns the snapshots that were added and not
+     * removed again, in the order they were added.
+     */
+    public List<Snapshot> load() throws IOException {
+        long valid = 0;
+        if (Files.exists(this.path)) {
+            long size = Files.size(this.path);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.path)))) {
+                while (true) {
+                    int type;
+                    try {
+                        type = in.readUnsignedByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte[] payload;
+                    try {
+                        int length = in.readInt();
+                        long checksum = Integer.toUnsignedLong(in.readInt());
+                        if (length < 0 || valid + RECORD_HEADER_SIZE + length > size) {
+                            throw new EOFException();
+                        }
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        if (checksum(payload) != checksum) {
+                            InvRestore.LOGGER.warn("Ignoring corrupted record at the end of {}", FILE_NAME);
+                            break;
+                        }
+                    } catch (EOFException e) {
+                        InvRestore.LOGGER.warn("Ignoring truncated record at the end of {}", FILE_NAME);
+                        break;
+                    }
+                    try {
+                        this.replay(type, payload);
+                    } catch (IOException e) {
+                        InvRestore.LOGGER.error("Skipping unreadable record in {}", FILE_NAME, e);
+                    }
+                    valid += RECORD_HEADER_SIZE + payload.length;
+                }
+            }
+        }
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(valid);
+        this.channel.position(valid);
+        return new ArrayList<>(this.entries.values());
+    }
+
+    /** Drops a replayed snapshot that turned out to be saved already */
+    public void forget(String id) {
+        this.entries.remove(id);
+    }
+
+    /** Queues a snapshot, returns whether a flush has to be scheduled */
+    public boolean add(Snapshot snapshot) {
+        this.queue.add(new Pending(snapshot, null));
+        return !this.flushScheduled.getAndSet(true);
+    }
+
+    /** Queues the removal of a snapshot, returns whether a flush has to be scheduled */
+    public boolean remove(String id) {
+        this.queue.add(new Pending(null, id));
+        return !this.flushScheduled.getAndSet(true);
+    }
+
+    /**
+     * Writes everything that was queued so far and waits until it is on disk.
+     */
+    public void flush() throws IOException {
+        this.flushScheduled.set(false);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        Pending pending;
+        while ((pending = this.queue.poll()) != null) {
+            if (pending.snapshot != null) {
+                SnapshotBinaryFormat.Writer writer = new SnapshotBinaryFormat.Writer(this.ops);
+                writer.write(pending.snapshot);
+                writeRecord(records, ADD, writer.toByteArray());
+                this.entries.put(pending.snapshot.id(), pending.snapshot);
+            } else if (this.entries.remove(pending.id) != null) {
+                writeRecord(records, REMOVE, pending.id.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (records.size() == 0) {
+            return;
+        }
+        long start = InvRestoreMetrics.JOURNAL_FLUSH.start();
+        ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        this.channel.force(false);
+        InvRestoreMetrics.JOURNAL_FLUSH.stop(start);
+        InvRestoreMetrics.BYTES_WRITTEN.addAndGet(records.size());
+    }
+
+    /**
+     * Drops the snapshots that have been saved to the store. The journal is
+     * truncated when nothing is left, otherwise the remaining snapshots are
+     * written to a new journal which replaces the current one.
+     */
+    public void checkpoint(Collection<String> savedIds) throws IOException {
+        this.flush();
+        savedIds.forEach(this.entries::remove);
+        if (this.entries.isEmpty()) {
+            this.channel.truncate(0);
+            this.channel.position(0);
+            return;
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Snapshot snapshot : this.entries.values()) {
+            SnapshotBinaryFormat.Writer writer = new SnapshotBinaryFormat.Writer(this.ops);
+            writer.write(snapshot);
+            writeRecord(records, ADD, writer.toByteArray());
+        }
+        Path temp = this.path.resolveSibling(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        this.channel.close();
+        Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE);
+        this.channel.position(this.channel.size());
+    }
+
+    public void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+        }
+    }
+
+    private void replay(int type, byte[] payload) throws IOException {
+        if (type == REMOVE) {
+            this.entries.remove(new String(payload, StandardCharsets.UTF_8));
+            return;
+        }
+        SnapshotBinaryFormat.Reader reader = new SnapshotBinaryFormat.Reader(payload);
+        while (reader.hasNext()) {
+            SnapshotBinaryFormat.Entry entry = reader.next();
+            if (entry.error() != null) {
+                InvRestore.LOGGER.error("{} in {}", entry.error(), FILE_NAME);
+                continue;
+            }
+            Snapshot snapshot = entry.snapshot().withContents(SnapshotContents.binary(entry.stackCount(), entry.contents(), this.ops, null));
+            this.entries.put(snapshot.id(), snapshot);
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, int type, byte[] payload) throws IOException {
+        DataOutputStream out = new DataOutputStream(records);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.writeInt((int) checksum(payload));
+        out.write(payload);
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private record Pending(Snapshot snapshot, String id) {}
+}
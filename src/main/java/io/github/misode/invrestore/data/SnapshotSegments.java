@@ -0,0 +1,607 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.metrics.InvRestoreMetrics;
+import net.minecraft.nbt.*;
+import net.minecraft.resources.RegistryOps;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+
+/**
+ * Append-only storage of snapshots, split over numbered segment files.
+ * Each save appends a single compressed frame with only the new snapshots
+ * to the current segment, and the frames are forced to disk before the
+ * save completes. Older segments are never re-encoded, removed
+ * snapshots are recorded by appending a removal frame to every segment that
+ * still holds a copy of them, so each segment can be read on its own. A
+ * segment is deleted once all of its snapshots have been removed.
+ * With delta encoding, a snapshot can store only the slots that changed
+ * since the previous snapshot of the same player in the same segment.
+ * Every frame starts with its format, followed by the compressed data.
+ * Segments are decoded in parallel when loading. Optionally only the newest
+ * segments are loaded up front and the older ones are left for later.
+ */
+public class SnapshotSegments implements SnapshotStore {
+    private static final int MAGIC = 0x49525347;
+    private static final int SEGMENT_VERSION = 1;
+    private static final int FRAME_NBT = 0;
+    private static final int FRAME_BINARY = 1;
+    private static final int FRAME_REMOVED = 2;
+    private static final String PREFIX = "segment-";
+    private static final String EXTENSION = ".dat";
+    private static final int MAX_SEGMENT_RECORDS = 1000;
+
+    private final Path directory;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Segment> segmentById = new HashMap<>();
+    private final Map<UUID, DeltaBase> deltaBases = new HashMap<>();
+    private final SnapshotCompression compression;
+    /** Older segments that are read by {@link #loadRemaining} */
+    private final List<Segment> remaining = new ArrayList<>();
+    /** Segments with appended frames that haven't been forced to disk yet */
+    private final Set<Segment> unsynced = new LinkedHashSet<>();
+    private Segment current;
+    private int threads = 1;
+    private boolean appendOnly = false;
+
+    public SnapshotSegments(Path directory) {
+        this.directory = directory;
+        this.compression = new SnapshotCompression(directory);
+    }
+
+    static boolean exists(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.anyMatch(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(EXTENSION);
+            });
+        }
+    }
+
+    @Override
+    public List<Snapshot> load(RegistryOps<Tag> ops, InvRestoreConfig.Loading loading) throws IOException {
+        Files.createDirectories(this.directory);
+        this.compression.load();
+        this.listSegments().forEach((index, path) -> this.segments.put(index, new Segment(index, path)));
+        this.threads = loading.threads();
+        List<Segment> eager = new ArrayList<>(this.segments.values());
+        if (loading.eagerSegments() > 0 && eager.size() > loading.eagerSegments()) {
+            List<Segment> older = eager.subList(0, eager.size() - loading.eagerSegments());
+            this.remaining.addAll(older);
+            older.clear();
+        }
+        return this.readSegments(eager, ops);
+    }
+
+    @Override
+    public List<Snapshot> loadRemaining(RegistryOps<Tag> ops) throws IOException {
+        if (this.remaining.isEmpty()) {
+            return List.of();
+        }
+        List<Segment> segments = List.copyOf(this.remaining);
+        this.remaining.clear();
+        return this.readSegments(segments, ops);
+    }
+
+    /**
+     * Prepares appending to the existing segments without reading them, used
+     * by the offline import. New snapshots always go to new segments, the
+     * existing ones are never compacted or deleted. The written snapshots
+     * aren't kept in memory either.
+     */
+    public void openForAppend() throws IOException {
+        this.appendOnly = true;
+        Files.createDirectories(this.directory);
+        this.compression.load();
+        this.listSegments().forEach((index, path) -> this.segments.put(index, new Segment(index, path)));
+    }
+
+    @Override
+    public void forEachRaw(RegistryOps<Tag> ops, RawSnapshot.Sink sink) throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+        this.compression.load();
+        for (Path path : this.listSegments().values()) {
+            Map<UUID, RawSnapshot.Items> bases = new HashMap<>();
+            // Buffered per segment, a later removal frame can still drop a snapshot
+            Map<String, RawSnapshot> snapshots = new LinkedHashMap<>();
+            this.readFrames(path, (format, data) -> {
+                if (format == FRAME_REMOVED) {
+                    readRemoved(data).forEach(snapshots::remove);
+                    return;
+                }
+                if (format == FRAME_BINARY) {
+                    SnapshotBinaryFormat.Reader reader = new SnapshotBinaryFormat.Reader(data);
+                    while (reader.hasNext()) {
+                        SnapshotBinaryFormat.Entry entry = reader.next();
+                        if (entry.error() != null) {
+                            InvRestore.LOGGER.error("{} in {}", entry.error(), path.getFileName());
+                            continue;
+                        }
+                        RawSnapshot.Items base = bases.get(entry.snapshot().playerUuid());
+                        if (entry.delta() && base == null) {
+                            InvRestore.LOGGER.error("Skipping snapshot in {}: missing delta base", path.getFileName());
+                            continue;
+                        }
+                        RawSnapshot.Items items = entry.delta()
+                                ? SnapshotBinaryFormat.applyRawDelta(base, entry.contents())
+                                : SnapshotBinaryFormat.decodeRawItems(entry.contents());
+                        bases.put(entry.snapshot().playerUuid(), items);
+                        snapshots.put(entry.snapshot().id(), new RawSnapshot(entry.snapshot(), items));
+                    }
+                    return;
+                }
+                for (Tag entry : SnapshotContents.fromBytes(data).getListOrEmpty("snapshots")) {
+                    if (!(entry instanceof CompoundTag tag)) {
+                        continue;
+                    }
+                    Optional<CompoundTag> delta = tag.getCompound("delta");
+                    CompoundTag contents = tag.getCompoundOrEmpty("contents");
+                    tag.remove("delta");
+                    Optional<Snapshot> header = SnapshotStore.decodeRawHeader(tag, ops)
+                            .resultOrPartial(error -> InvRestore.LOGGER.error("Skipping snapshot in {}: {}", path.getFileName(), error));
+                    if (header.isEmpty()) {
+                        continue;
+                    }
+                    RawSnapshot.Items base = bases.get(header.get().playerUuid());
+                    if (delta.isPresent() && base == null) {
+                        InvRestore.LOGGER.error("Skipping snapshot in {}: missing delta base", path.getFileName());
+                        continue;
+                    }
+                    RawSnapshot.Items items = delta.isPresent() ? base.applyNbtDelta(delta.get()) : RawSnapshot.Items.fromNbt(contents);
+                    bases.put(header.get().playerUuid(), items);
+                    snapshots.put(header.get().id(), new RawSnapshot(header.get(), items));
+                }
+            });
+            for (RawSnapshot snapshot : snapshots.values()) {
+                sink.accept(snapshot);
+            }
+        }
+    }
+
+    private TreeMap<Integer, Path> listSegments() throws IOException {
+        TreeMap<Integer, Path> result = new TreeMap<>();
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(EXTENSION)) {
+                    try {
+                        result.put(Integer.parseInt(name.substring(PREFIX.length(), name.length() - EXTENSION.length())), path);
+                    } catch (NumberFormatException ignored) {}
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the segments in parallel, then registers their snapshots in
+     * segment order. A snapshot that was moved to a newer segment is only
+     * kept from that newer segment.
+     */
+    private List<Snapshot> readSegments(List<Segment> segments, RegistryOps<Tag> ops) throws IOException {
+        List<DecodedSegment> decoded = new ArrayList<>(segments.size());
+        ForkJoinPool pool = new ForkJoinPool(Math.min(this.threads, Math.max(1, segments.size())));
+        try {
+            List<ForkJoinTask<DecodedSegment>> tasks = new ArrayList<>(segments.size());
+            for (Segment segment : segments) {
+                tasks.add(pool.submit(() -> this.readSegment(segment, ops)));
+            }
+            for (ForkJoinTask<DecodedSegment> task : tasks) {
+                decoded.add(task.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Failed to read segments", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading segments");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Map<String, Snapshot> result = new LinkedHashMap<>();
+        for (int i = 0; i < segments.size(); i += 1) {
+            Segment segment = segments.get(i);
+            segment.loaded = true;
+            segment.records += decoded.get(i).records();
+            for (Snapshot snapshot : decoded.get(i).snapshots()) {
+                if (this.register(snapshot, segment)) {
+                    result.remove(snapshot.id());
+                    result.put(snapshot.id(), snapshot);
+                }
+            }
+        }
+        segments.forEach(this::deleteIfDead);
+        return new ArrayList<>(result.values());
+    }
+
+    @Override
+    public void write(List<Snapshot> added, Collection<String> removedIds, RegistryOps<Tag> ops, InvRestoreConfig.Storage storage) throws IOException {
+        this.release(removedIds, storage);
+        List<Snapshot> snapshots = new ArrayList<>(added);
+        // Move snapshots out of mostly-evicted segments, so those can be deleted,
+        // and out of segments with NBT frames when the binary format is used
+        for (Segment segment : this.segments.values()) {
+            if (segment != this.current && segment.loaded && (segment.live.size() * 4 < segment.records
+                    || storage.format() == InvRestoreConfig.Format.BINARY && segment.nbtFrames)) {
+                snapshots.addAll(segment.live.values());
+            }
+        }
+        if (this.compression.needsDictionary(storage)) {
+            List<Snapshot> samples = new ArrayList<>();
+            this.segments.values().forEach(segment -> samples.addAll(segment.live.values()));
+            samples.addAll(added);
+            try {
+                this.compression.train(samples, ops);
+            } catch (IOException e) {
+                InvRestore.LOGGER.error("Failed to save the compression dictionary", e);
+            }
+        }
+        this.append(snapshots, ops, storage);
+        // The journal is truncated after this, so the frames have to be on disk
+        this.sync();
+    }
+
+    @Override
+    public void close() {}
+
+    private void append(List<Snapshot> snapshots, RegistryOps<Tag> ops, InvRestoreConfig.Storage storage) throws IOException {
+        int start = 0;
+        while (start < snapshots.size()) {
+            if (this.current == null || this.current.records >= MAX_SEGMENT_RECORDS) {
+                this.current = this.createSegment();
+                this.deltaBases.clear();
+            }
+            int end = Math.min(snapshots.size(), start + MAX_SEGMENT_RECORDS - this.current.records);
+            List<Snapshot> batch = snapshots.subList(start, end);
+            try {
+                this.writeFrame(this.current, batch, ops, storage);
+            } catch (IOException | RuntimeException e) {
+                // The frame may be partially written, so never append after it
+                this.current = null;
+                throw e;
+            }
+            this.current.records += batch.size();
+            if (!this.appendOnly) {
+                for (Snapshot snapshot : batch) {
+                    this.register(snapshot, this.current);
+                }
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Appends a removal frame to every segment that still holds a copy of
+     * the removed snapshots, including older copies that were moved out.
+     * Segments that are left without snapshots are deleted instead.
+     */
+    private void release(Collection<String> ids, InvRestoreConfig.Storage storage) throws IOException {
+        Map<Segment, List<String>> removals = new LinkedHashMap<>();
+        for (String id : ids) {
+            Segment segment = this.segmentById.remove(id);
+            if (segment != null) {
+                segment.live.remove(id);
+                removals.computeIfAbsent(segment, k -> new ArrayList<>()).add(id);
+            }
+            for (Segment other : this.segments.values()) {
+                if (other.superseded.remove(id)) {
+                    removals.computeIfAbsent(other, k -> new ArrayList<>()).add(id);
+                }
+            }
+        }
+        for (Map.Entry<Segment, List<String>> entry : removals.entrySet()) {
+            Segment segment = entry.getKey();
+            this.deleteIfDead(segment);
+            if (this.segments.containsKey(segment.index)) {
+                this.writeRemovalFrame(segment, entry.getValue(), storage);
+            }
+        }
+    }
+
+    /** Returns whether this is the newest copy of the snapshot */
+    private boolean register(Snapshot snapshot, Segment segment) {
+        Segment previous = this.segmentById.get(snapshot.id());
+        if (previous != null && previous.index > segment.index) {
+            segment.superseded.add(snapshot.id());
+            return false;
+        }
+        this.segmentById.put(snapshot.id(), segment);
+        segment.live.put(snapshot.id(), snapshot);
+        if (previous != null && previous != segment) {
+            previous.live.remove(snapshot.id());
+            previous.superseded.add(snapshot.id());
+            this.deleteIfDead(previous);
+        }
+        return true;
+    }
+
+    private void deleteIfDead(Segment segment) {
+        if (segment == this.current || !segment.loaded || !segment.live.isEmpty()) {
+            return;
+        }
+        try {
+            // Its snapshots may have just been moved, the new copies have to be on disk first
+            this.sync();
+            Files.deleteIfExists(segment.path);
+            this.segments.remove(segment.index);
+        } catch (IOException e) {
+            InvRestore.LOGGER.error("Failed to delete segment {}", segment.path.getFileName(), e);
+        }
+    }
+
+    private Segment createSegment() {
+        int index = this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+        Segment segment = new Segment(index, this.directory.resolve(PREFIX + String.format(Locale.ROOT, "%06d", index) + EXTENSION));
+        segment.loaded = !this.appendOnly;
+        this.segments.put(index, segment);
+        return segment;
+    }
+
+    private void writeFrame(Segment segment, List<Snapshot> snapshots, RegistryOps<Tag> ops, InvRestoreConfig.Storage storage) throws IOException {
+        long encodeStart = InvRestoreMetrics.SAVE_ENCODE.start();
+        boolean binary = storage.format() == InvRestoreConfig.Format.BINARY;
+        ListTag list = new ListTag();
+        SnapshotBinaryFormat.Writer writer = new SnapshotBinaryFormat.Writer(ops);
+        Map<UUID, DeltaBase> newBases = new HashMap<>();
+        for (Snapshot snapshot : snapshots) {
+            DeltaBase base = newBases.getOrDefault(snapshot.playerUuid(), this.deltaBases.get(snapshot.playerUuid()));
+            SnapshotContents contents = snapshot.contents();
+            if (storage.deltaEncoding() && base != null && base.depth < storage.keyframeInterval()
+                    && contents.isLoaded() && base.contents.isLoaded()) {
+                SnapshotDelta delta = SnapshotDelta.between(base.contents.get(), contents.get());
+                if (binary) {
+                    writer.writeDelta(snapshot, delta);
+                } else {
+                    CompoundTag tag = (CompoundTag) Snapshot.CODEC.encodeStart(ops, snapshot.withContents(SnapshotContents.EMPTY)).getOrThrow(IOException::new);
+                    tag.remove("contents");
+                    tag.put("delta", SnapshotDelta.CODEC.encodeStart(ops, delta).getOrThrow(IOException::new));
+                    list.add(tag);
+                }
+                newBases.put(snapshot.playerUuid(), new DeltaBase(contents, base.depth + 1));
+            } else {
+                if (binary) {
+                    writer.write(snapshot);
+                } else {
+                    list.add(Snapshot.CODEC.encodeStart(ops, snapshot).getOrThrow(IOException::new));
+                }
+                newBases.put(snapshot.playerUuid(), new DeltaBase(contents, 0));
+            }
+        }
+        byte[] encoded;
+        if (binary) {
+            encoded = writer.toByteArray();
+        } else {
+            CompoundTag tag = new CompoundTag();
+            tag.put("snapshots", list);
+            encoded = SnapshotContents.toBytes(tag);
+        }
+        InvRestoreMetrics.SAVE_ENCODE.stop(encodeStart);
+
+        this.appendFrame(segment, binary ? FRAME_BINARY : FRAME_NBT, encoded, storage);
+        segment.nbtFrames |= !binary;
+        this.deltaBases.putAll(newBases);
+    }
+
+    private void writeRemovalFrame(Segment segment, List<String> ids, InvRestoreConfig.Storage storage) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.size() * 16 + 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ids.size());
+        for (String id : ids) {
+            out.writeUTF(id);
+        }
+        this.appendFrame(segment, FRAME_REMOVED, bytes.toByteArray(), storage);
+    }
+
+    private static List<String> readRemoved(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = in.readInt();
+        List<String> ids = new ArrayList<>(Math.min(count, MAX_SEGMENT_RECORDS));
+        for (int i = 0; i < count; i += 1) {
+            ids.add(in.readUTF());
+        }
+        return ids;
+    }
+
+    private void appendFrame(Segment segment, int format, byte[] encoded, InvRestoreConfig.Storage storage) throws IOException {
+        long compressStart = InvRestoreMetrics.SAVE_COMPRESS.start();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        this.compression.compress(encoded, storage, new DataOutputStream(frame));
+        InvRestoreMetrics.SAVE_COMPRESS.stop(compressStart);
+
+        long writeStart = InvRestoreMetrics.SAVE_WRITE.start();
+        boolean isNew = !Files.exists(segment.path);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(segment.path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)))) {
+            if (isNew) {
+                out.writeInt(MAGIC);
+                out.writeInt(SEGMENT_VERSION);
+            }
+            out.writeInt(frame.size() + 1);
+            out.writeByte(format);
+            frame.writeTo(out);
+            InvRestoreMetrics.BYTES_WRITTEN.addAndGet(out.size());
+        }
+        this.unsynced.add(segment);
+        InvRestoreMetrics.SAVE_WRITE.stop(writeStart);
+    }
+
+    private void sync() throws IOException {
+        Iterator<Segment> iterator = this.unsynced.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (Files.exists(segment.path)) {
+                try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                }
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Decodes the snapshots of a segment, without the ones that were removed
+     * by a later removal frame in the same segment.
+     */
+    private DecodedSegment readSegment(Segment segment, RegistryOps<Tag> ops) throws IOException {
+        List<Snapshot> result = new ArrayList<>();
+        Set<String> removed = new HashSet<>();
+        Map<UUID, SnapshotContents> bases = new HashMap<>();
+        long end = this.readFrames(segment.path, (format, data) -> {
+            if (format == FRAME_REMOVED) {
+                removed.addAll(readRemoved(data));
+                return;
+            }
+            if (format == FRAME_BINARY) {
+                this.readBinaryFrame(segment, data, bases, result, ops);
+                return;
+            }
+            segment.nbtFrames = true;
+            CompoundTag tag = SnapshotContents.fromBytes(data);
+            for (Tag entry : tag.getListOrEmpty("snapshots")) {
+                Optional<CompoundTag> delta = entry.asCompound().flatMap(c -> c.getCompound("delta"));
+                if (delta.isPresent()) {
+                    ((CompoundTag) entry).put("contents", new CompoundTag());
+                }
+                Optional<Snapshot> snapshot = Snapshot.CODEC.parse(ops, entry)
+                        .resultOrPartial(error -> InvRestore.LOGGER.error("Skipping snapshot in {}: {}", segment.path.getFileName(), error));
+                if (snapshot.isPresent() && delta.isPresent()) {
+                    SnapshotContents base = bases.get(snapshot.get().playerUuid());
+                    if (base == null) {
+                        InvRestore.LOGGER.error("Skipping snapshot in {}: missing delta base", segment.path.getFileName());
+                        continue;
+                    }
+                    snapshot = Optional.of(snapshot.get().withContents(SnapshotContents.delta(base, delta.get(), ops)));
+                }
+                snapshot.ifPresent(s -> {
+                    bases.put(s.playerUuid(), s.contents());
+                    result.add(s);
+                });
+            }
+        });
+        // Cut off a torn frame, otherwise a removal frame appended later would be lost behind it
+        if (end < Files.size(segment.path)) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        int records = result.size();
+        result.removeIf(snapshot -> removed.contains(snapshot.id()));
+        return new DecodedSegment(result, records);
+    }
+
+    /**
+     * Reads the frames of a segment file one by one and passes on their
+     * format and decompressed data. A truncated frame at the end is ignored,
+     * a frame with an invalid length or format fails the whole segment.
+     * Returns where the last complete frame ends.
+     */
+    private long readFrames(Path path, FrameConsumer consumer) throws IOException {
+        long size = Files.size(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot segment: " + path.getFileName());
+            }
+            int version = in.readInt();
+            if (version != SEGMENT_VERSION) {
+                throw new IOException("Unsupported segment version " + version + " in " + path.getFileName());
+            }
+            long position = 8;
+            long end = position;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    if (position < size) {
+                        InvRestore.LOGGER.warn("Ignoring truncated frame at the end of {}", path.getFileName());
+                    }
+                    break;
+                }
+                position += 4;
+                if (length <= 1) {
+                    throw new IOException("Invalid frame length " + length + " in " + path.getFileName());
+                }
+                // Checked before allocating, a partly written length can be huge
+                if (position + length > size) {
+                    InvRestore.LOGGER.warn("Ignoring truncated frame at the end of {}", path.getFileName());
+                    break;
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                position += length;
+                end = position;
+                int format = frame[0];
+                if (format != FRAME_BINARY && format != FRAME_NBT && format != FRAME_REMOVED) {
+                    throw new IOException("Unknown frame format " + format + " in " + path.getFileName());
+                }
+                consumer.accept(format, this.compression.decompress(frame, 1));
+            }
+            return end;
+        }
+    }
+
+    private void readBinaryFrame(Segment segment, byte[] data, Map<UUID, SnapshotContents> bases, List<Snapshot> result, RegistryOps<Tag> ops) throws IOException {
+        SnapshotBinaryFormat.Reader reader = new SnapshotBinaryFormat.Reader(data);
+        while (reader.hasNext()) {
+            SnapshotBinaryFormat.Entry entry = reader.next();
+            if (entry.error() != null) {
+                InvRestore.LOGGER.error("{} in {}", entry.error(), segment.path.getFileName());
+                continue;
+            }
+            SnapshotContents base = null;
+            if (entry.delta()) {
+                base = bases.get(entry.snapshot().playerUuid());
+                if (base == null) {
+                    InvRestore.LOGGER.error("Skipping snapshot in {}: missing delta base", segment.path.getFileName());
+                    continue;
+                }
+            }
+            Snapshot snapshot = entry.snapshot().withContents(SnapshotContents.binary(entry.stackCount(), entry.contents(), ops, base));
+            bases.put(snapshot.playerUuid(), snapshot.contents());
+            result.add(snapshot);
+        }
+    }
+
+    @FunctionalInterface
+    private interface FrameConsumer {
+        void accept(int format, byte[] data) throws IOException;
+    }
+
+    private record DeltaBase(SnapshotContents contents, int depth) {}
+
+    private record DecodedSegment(List<Snapshot> snapshots, int records) {}
+
+    private static class Segment {
+        private final int index;
+        private final Path path;
+        private final Map<String, Snapshot> live = new LinkedHashMap<>();
+        /** Snapshots of which a newer copy was written to a later segment */
+        private final Set<String> superseded = new HashSet<>();
+        private int records;
+        private boolean nbtFrames;
+        private boolean loaded;
+
+        private Segment(int index, Path path) {
+            this.index = index;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import com.mojang.serialization.DataResult;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persistent storage of snapshots. {@link #load} is called once on the server
+ * thread, after that the store is only accessed from the database I/O thread.
+ * Contents of loaded snapshots may be read from the store later, from any thread.
+ */
+public interface SnapshotStore {
+    List<Snapshot> load(RegistryOps<Tag> ops, InvRestoreConfig.Loading loading) throws IOException;
+
+    /**
+     * Returns the snapshots that {@link #load} left for later, called once on
+     * the I/O thread before anything is written. Stores that always load
+     * everything up front return nothing.
+     */
+    default List<Snapshot> loadRemaining(RegistryOps<Tag> ops) throws IOException {
+        return List.of();
+    }
+
+    void write(List<Snapshot> added, Collection<String> removedIds, RegistryOps<Tag> ops, InvRestoreConfig.Storage storage) throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * Streams every stored snapshot with its items as they are stored, for
+     * the offline export tool. The files are only read, {@link #load} doesn't
+     * have to be called first.
+     */
+    void forEachRaw(RegistryOps<Tag> ops, RawSnapshot.Sink sink) throws IOException;
+
+    static SnapshotStore create(InvRestoreConfig.Backend backend, Path directory) {
+        return switch (backend) {
+            case SEGMENTS -> new SnapshotSegments(directory);
+            case MVSTORE -> new MVSnapshotStore(directory);
+        };
+    }
+
+    /**
+     * Encodes a snapshot without its contents, only keeping the number of
+     * stacks, so it can be listed without reading the items.
+     */
+    static CompoundTag encodeHeader(Snapshot snapshot, RegistryOps<Tag> ops) throws IOException {
+        CompoundTag tag = (CompoundTag) Snapshot.CODEC.encodeStart(ops, snapshot.withContents(SnapshotContents.EMPTY)).getOrThrow(IOException::new);
+        tag.remove("contents");
+        tag.putInt("stack_count", snapshot.contents().stackCount());
+        return tag;
+    }
+
+    static DataResult<Snapshot> decodeHeader(CompoundTag tag, SnapshotContents.Source contents, RegistryOps<Tag> ops) {
+        int stackCount = tag.getIntOr("stack_count", 0);
+        tag.put("contents", new CompoundTag());
+        return Snapshot.CODEC.parse(ops, tag)
+                .map(snapshot -> snapshot.withContents(SnapshotContents.stored(stackCount, contents, ops)));
+    }
+
+    /** Decodes a header for a {@link RawSnapshot}, any contents in the tag are ignored */
+    static DataResult<Snapshot> decodeRawHeader(CompoundTag tag, RegistryOps<Tag> ops) {
+        tag.put("contents", new CompoundTag());
+        return Snapshot.CODEC.parse(ops, tag)
+                .map(snapshot -> snapshot.withContents(SnapshotContents.EMPTY));
+    }
+}
@@ -3,6 +3,7 @@ package io.github.misode.invrestore.gui;
 import eu.pb4.sgui.api.ClickType;
 import eu.pb4.sgui.api.gui.SimpleGui;
 import eu.pb4.sgui.api.gui.SlotGuiInterface;
+import io.github.misode.invrestore.InvRestore;
 import io.github.misode.invrestore.Styles;
 import io.github.misode.invrestore.data.Snapshot;
 import net.minecraft.core.component.DataComponents;
@@ -20,7 +21,7 @@ public class SnapshotGui extends SimpleGui {
 
     public SnapshotGui(ServerPlayer player, Snapshot snapshot) {
         super(MenuType.GENERIC_9x5, player, false);
-        List<ItemStack> items = snapshot.contents().allItems().toList();
+        List<ItemStack> items = InvRestore.getItems(snapshot).allItems().toList();
         this.container = new TakeOnlyContainer(items);
         this.setTitle(Component.empty()
                 .append(snapshot.event().formatEmoji(true))
@@ -0,0 +1,79 @@
+package io.github.misode.invrestore.metrics;
+
+import io.github.misode.invrestore.data.InvRestoreDatabase;
+import io.github.misode.invrestore.data.Snapshot;
+import net.minecraft.resources.Identifier;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide timings and counters, shown by {@code /invrestore stats}.
+ */
+public class InvRestoreMetrics {
+    public static final LatencyHistogram CAPTURE = new LatencyHistogram("capture");
+    public static final LatencyHistogram PRE_ENCODE = new LatencyHistogram("pre-encode");
+    public static final LatencyHistogram SAVE_ENCODE = new LatencyHistogram("save encode");
+    public static final LatencyHistogram SAVE_COMPRESS = new LatencyHistogram("save compress");
+    public static final LatencyHistogram SAVE_WRITE = new LatencyHistogram("save write");
+    public static final LatencyHistogram INGEST_WAIT = new LatencyHistogram("ingest wait");
+    public static final LatencyHistogram JOURNAL_FLUSH = new LatencyHistogram("journal flush");
+    public static final LatencyHistogram LOAD = new LatencyHistogram("load");
+    public static final LatencyHistogram QUERY = new LatencyHistogram("query");
+
+    public static final AtomicLong EVICTIONS = new AtomicLong();
+    public static final AtomicLong BYTES_WRITTEN = new AtomicLong();
+    public static final AtomicLong CACHE_HITS = new AtomicLong();
+    public static final AtomicLong CACHE_MISSES = new AtomicLong();
+    public static final AtomicLong DEDUPLICATED = new AtomicLong();
+    public static final AtomicLong AUTO_SAVE_DEFERRED = new AtomicLong();
+    public static final AtomicLong INGEST_DROPPED = new AtomicLong();
+    public static final AtomicLong INGEST_COALESCED = new AtomicLong();
+    public static final AtomicLong INGEST_MAX_DEPTH = new AtomicLong();
+    private static final Map<Snapshot.EventType<?>, AtomicLong> CAPTURED = new ConcurrentHashMap<>();
+
+    public static List<LatencyHistogram> histograms() {
+        return List.of(CAPTURE, INGEST_WAIT, PRE_ENCODE, SAVE_ENCODE, SAVE_COMPRESS, SAVE_WRITE, JOURNAL_FLUSH, LOAD, QUERY);
+    }
+
+    public static void recordCapture(Snapshot.EventType<?> type) {
+        CAPTURED.computeIfAbsent(type, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    public static Map<String, Long> captured() {
+        Map<String, Long> result = new TreeMap<>();
+        CAPTURED.forEach((type, count) -> {
+            Identifier key = Objects.requireNonNull(Snapshot.EventType.REGISTRY.getKey(type));
+            result.put(key.getPath(), count.get());
+        });
+        return result;
+    }
+
+    public static List<String> format(@Nullable InvRestoreDatabase database) {
+        List<String> lines = new ArrayList<>();
+        if (database != null) {
+            lines.add("snapshots: " + database.index().size()
+                    + " archived: " + database.archivedCount()
+                    + " players: " + database.index().playerUuids().size()
+                    + " pooled stacks: " + database.pool().stackCount()
+                    + " pooled lists: " + database.pool().listCount());
+            lines.add("ingest queue: " + database.ingestQueue().size() + " max depth: " + INGEST_MAX_DEPTH.get()
+                    + " dropped: " + INGEST_DROPPED.get() + " coalesced: " + INGEST_COALESCED.get());
+            lines.add("items cache: " + database.itemsCache().size() + " snapshots " + database.itemsCache().stacks() + " stacks"
+                    + " hits: " + CACHE_HITS.get() + " misses: " + CACHE_MISSES.get());
+        }
+        StringBuilder captured = new StringBuilder("captured:");
+        captured().forEach((type, count) -> captured.append(" ").append(type).append("=").append(count));
+        lines.add(captured.toString());
+        lines.add("evictions: " + EVICTIONS.get() + " bytes written: " + BYTES_WRITTEN.get());
+        lines.add("unchanged snapshots skipped or collapsed: " + DEDUPLICATED.get() + " auto-save deferred ticks: " + AUTO_SAVE_DEFERRED.get());
+        histograms().forEach(histogram -> lines.add(histogram.format()));
+        return lines;
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.misode.invrestore.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram with power-of-two buckets in nanoseconds.
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 48;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return this.name;
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void stop(long start) {
+        this.record(System.nanoTime() - start);
+    }
+
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        this.buckets.incrementAndGet(bucket);
+        this.count.incrementAndGet();
+        this.total.addAndGet(nanos);
+        this.max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long count() {
+        return this.count.get();
+    }
+
+    public double averageMillis() {
+        long count = this.count.get();
+        return count == 0 ? 0 : this.total.get() / (double)count / 1_000_000;
+    }
+
+    public double maxMillis() {
+        return this.max.get() / 1_000_000.0;
+    }
+
+    public double percentileMillis(double percentile) {
+        long count = this.count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            seen += this.buckets.get(i);
+            if (seen >= target) {
+                return Math.min(1L << i, this.max.get()) / 1_000_000.0;
+            }
+        }
+        return this.maxMillis();
+    }
+
+    public String format() {
+        return String.format(Locale.ROOT, "%s: n=%d avg=%.2fms p50=%.2fms p95=%.2fms max=%.2fms",
+                this.name, this.count(), this.averageMillis(), this.percentileMillis(0.5), this.percentileMillis(0.95), this.maxMillis());
+    }
+}
@@ -0,0 +1,36 @@
+package io.github.misode.invrestore.mixin;
+
+import io.github.misode.invrestore.InvRestoreModificationTracker;
+import net.minecraft.core.NonNullList;
+import net.minecraft.world.inventory.AbstractContainerMenu;
+import net.minecraft.world.inventory.Slot;
+import net.minecraft.world.item.ItemStack;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.util.function.Supplier;
+
+/**
+ * Stacks that are changed in place, like food being eaten or tools losing
+ * durability, don't go through the container. The open menu notices those
+ * when it syncs the slots, so the container is marked as modified then.
+ * Only slots that differ from what was last synced count, an unchanged
+ * slot is compared on every tick.
+ */
+@Mixin(AbstractContainerMenu.class)
+public class AbstractContainerMenuMixin {
+    @Shadow
+    @Final
+    public NonNullList<Slot> slots;
+
+    @Inject(method = "triggerSlotListeners", at = @At(value = "INVOKE", target = "Lnet/minecraft/core/NonNullList;set(ILjava/lang/Object;)Ljava/lang/Object;"))
+    private void triggerSlotListeners(int slotIndex, ItemStack stack, Supplier<ItemStack> supplier, CallbackInfo ci) {
+        if (this.slots.get(slotIndex).container instanceof InvRestoreModificationTracker tracker) {
+            tracker.inv_restore$markModified();
+        }
+    }
+}
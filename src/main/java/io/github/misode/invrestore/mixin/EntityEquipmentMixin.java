@@ -1,22 +1,31 @@
 package io.github.misode.invrestore.mixin;
 
 import io.github.misode.invrestore.InvRestoreEntityEquipment;
+import io.github.misode.invrestore.InvRestoreModificationTracker;
 import net.minecraft.world.entity.EntityEquipment;
 import net.minecraft.world.entity.EquipmentSlot;
 import net.minecraft.world.item.ItemStack;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.util.EnumMap;
 import java.util.List;
 
 @Mixin(EntityEquipment.class)
-public class EntityEquipmentMixin implements InvRestoreEntityEquipment {
+public class EntityEquipmentMixin implements InvRestoreEntityEquipment, InvRestoreModificationTracker {
     @Shadow
     @Final
     private EnumMap<EquipmentSlot, ItemStack> items;
 
+    @Unique
+    private long modification = InvRestoreModificationTracker.nextModification();
+
     @Override
     public List<ItemStack> inv_restore$getArmor() {
         return List.of(
@@ -31,4 +40,24 @@ public class EntityEquipmentMixin implements InvRestoreEntityEquipment {
     public List<ItemStack> inv_restore$getOffhand() {
         return List.of(items.getOrDefault(EquipmentSlot.OFFHAND, ItemStack.EMPTY));
     }
+
+    @Override
+    public long inv_restore$getModification() {
+        return this.modification;
+    }
+
+    @Override
+    public void inv_restore$markModified() {
+        this.modification = InvRestoreModificationTracker.nextModification();
+    }
+
+    @Inject(method = "set", at = @At("RETURN"))
+    private void markSet(EquipmentSlot slot, ItemStack stack, CallbackInfoReturnable<ItemStack> cir) {
+        this.inv_restore$markModified();
+    }
+
+    @Inject(method = {"setAll", "clear"}, at = @At("TAIL"))
+    private void markModified(CallbackInfo ci) {
+        this.inv_restore$markModified();
+    }
 }
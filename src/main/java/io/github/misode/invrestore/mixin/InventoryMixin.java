@@ -1,6 +1,7 @@
 package io.github.misode.invrestore.mixin;
 
 import io.github.misode.invrestore.InvRestoreInventory;
+import io.github.misode.invrestore.InvRestoreModificationTracker;
 import net.minecraft.core.NonNullList;
 import net.minecraft.world.entity.EntityEquipment;
 import net.minecraft.world.entity.player.Inventory;
@@ -8,9 +9,14 @@ import net.minecraft.world.item.ItemStack;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 @Mixin(Inventory.class)
-public class InventoryMixin implements InvRestoreInventory {
+public class InventoryMixin implements InvRestoreInventory, InvRestoreModificationTracker {
     @Shadow
     @Final
     private NonNullList<ItemStack> items;
@@ -19,6 +25,9 @@ public class InventoryMixin implements InvRestoreInventory {
     @Final
     private EntityEquipment equipment;
 
+    @Unique
+    private long modification = InvRestoreModificationTracker.nextModification();
+
     @Override
     public NonNullList<ItemStack> inv_restore$getItems() {
         return this.items;
@@ -28,4 +37,30 @@ public class InventoryMixin implements InvRestoreInventory {
     public EntityEquipment inv_restore$getEquipment() {
         return this.equipment;
     }
+
+    @Override
+    public long inv_restore$getModification() {
+        return this.modification;
+    }
+
+    @Override
+    public void inv_restore$markModified() {
+        this.modification = InvRestoreModificationTracker.nextModification();
+    }
+
+    @Inject(method = {"setItem", "setChanged", "clearContent", "replaceWith"}, at = @At("TAIL"))
+    private void markModified(CallbackInfo ci) {
+        this.inv_restore$markModified();
+    }
+
+    @Inject(method = {"removeItem(II)Lnet/minecraft/world/item/ItemStack;", "removeItemNoUpdate"}, at = @At("RETURN"))
+    private void markRemoved(CallbackInfoReturnable<ItemStack> cir) {
+        this.inv_restore$markModified();
+    }
+
+    /** Picked up items are merged into existing stacks without setting the slot */
+    @Inject(method = "add(ILnet/minecraft/world/item/ItemStack;)Z", at = @At("RETURN"))
+    private void markAdded(CallbackInfoReturnable<Boolean> cir) {
+        this.inv_restore$markModified();
+    }
 }
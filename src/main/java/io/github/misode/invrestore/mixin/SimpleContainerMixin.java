@@ -0,0 +1,41 @@
+package io.github.misode.invrestore.mixin;
+
+import io.github.misode.invrestore.InvRestoreModificationTracker;
+import net.minecraft.world.SimpleContainer;
+import net.minecraft.world.item.ItemStack;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+/**
+ * Tracks modifications of the ender chest, which doesn't override any of
+ * the methods of {@link SimpleContainer} that change its items.
+ */
+@Mixin(SimpleContainer.class)
+public class SimpleContainerMixin implements InvRestoreModificationTracker {
+    @Unique
+    private long modification = InvRestoreModificationTracker.nextModification();
+
+    @Override
+    public long inv_restore$getModification() {
+        return this.modification;
+    }
+
+    @Override
+    public void inv_restore$markModified() {
+        this.modification = InvRestoreModificationTracker.nextModification();
+    }
+
+    @Inject(method = {"setChanged", "clearContent"}, at = @At("TAIL"))
+    private void markModified(CallbackInfo ci) {
+        this.inv_restore$markModified();
+    }
+
+    @Inject(method = "removeItemNoUpdate", at = @At("RETURN"))
+    private void markRemoved(int slot, CallbackInfoReturnable<ItemStack> cir) {
+        this.inv_restore$markModified();
+    }
+}
@@ -0,0 +1,177 @@
+package io.github.misode.invrestore.tool;
+
+import io.github.misode.invrestore.data.RawSnapshot;
+import io.github.misode.invrestore.data.Snapshot;
+import io.github.misode.invrestore.data.SnapshotBinaryFormat;
+import io.github.misode.invrestore.data.SnapshotContents;
+import net.minecraft.world.phys.Vec3;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped blocks of snapshots, each block stores the snapshots column by
+ * column. Every column is length-prefixed, so an analysis that only needs a
+ * few fields can skip the others, in particular the items. The items column
+ * uses the same layout as the binary storage format.
+ */
+final class ColumnarFormat {
+    private static final int MAGIC = 0x49524343;
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 4096;
+    private static final List<String> COLUMNS = List.of("id", "player_uuid", "player_name", "event", "event_message",
+            "event_origin", "event_destination", "time", "dimension", "x", "y", "z", "stack_count", "items");
+
+    private ColumnarFormat() {}
+
+    static final class Writer implements ExportFormat.SnapshotWriter {
+        private final DataOutputStream out;
+        private final List<ByteArrayOutputStream> columns = new ArrayList<>(COLUMNS.size());
+        private final List<DataOutputStream> columnOuts = new ArrayList<>(COLUMNS.size());
+        private int rows = 0;
+
+        Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.writeInt(COLUMNS.size());
+            for (String column : COLUMNS) {
+                this.out.writeUTF(column);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                this.columns.add(bytes);
+                this.columnOuts.add(new DataOutputStream(bytes));
+            }
+        }
+
+        @Override
+        public void write(RawSnapshot snapshot) throws IOException {
+            Snapshot header = snapshot.header();
+            this.column(0).writeUTF(header.id());
+            this.column(1).writeLong(header.playerUuid().getMostSignificantBits());
+            this.column(1).writeLong(header.playerUuid().getLeastSignificantBits());
+            this.column(2).writeUTF(header.playerName());
+            this.column(3).writeUTF(ExportFormat.eventType(header.event()));
+            this.column(4).writeUTF(ExportFormat.eventMessage(header.event()));
+            this.column(5).writeUTF(ExportFormat.eventOrigin(header.event()));
+            this.column(6).writeUTF(ExportFormat.eventDestination(header.event()));
+            this.column(7).writeLong(header.time().toEpochMilli());
+            this.column(8).writeUTF(header.dimension().identifier().toString());
+            this.column(9).writeDouble(header.position().x);
+            this.column(10).writeDouble(header.position().y);
+            this.column(11).writeDouble(header.position().z);
+            this.column(12).writeInt(snapshot.items().stackCount());
+            byte[] items = SnapshotBinaryFormat.encodeRawItems(snapshot.items());
+            this.column(13).writeInt(items.length);
+            this.column(13).write(items);
+            this.rows += 1;
+            if (this.rows >= BLOCK_SIZE) {
+                this.flushBlock();
+            }
+        }
+
+        private DataOutputStream column(int index) {
+            return this.columnOuts.get(index);
+        }
+
+        private void flushBlock() throws IOException {
+            if (this.rows == 0) {
+                return;
+            }
+            this.out.writeInt(this.rows);
+            for (ByteArrayOutputStream column : this.columns) {
+                this.out.writeInt(column.size());
+                column.writeTo(this.out);
+                column.reset();
+            }
+            this.rows = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flushBlock();
+            this.out.writeInt(0);
+            this.out.close();
+        }
+    }
+
+    static final class Reader implements ExportFormat.SnapshotReader {
+        private final DataInputStream in;
+        private final int columnCount;
+        private final List<DataInputStream> columns = new ArrayList<>(COLUMNS.size());
+        private int remaining = 0;
+        private boolean ended = false;
+
+        Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a columnar snapshot export");
+            }
+            int version = this.in.readInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported columnar export version " + version);
+            }
+            this.columnCount = this.in.readInt();
+            List<String> names = new ArrayList<>(this.columnCount);
+            for (int i = 0; i < this.columnCount; i += 1) {
+                names.add(this.in.readUTF());
+            }
+            if (names.size() < COLUMNS.size() || !names.subList(0, COLUMNS.size()).equals(COLUMNS)) {
+                throw new IOException("Unexpected columns " + names);
+            }
+        }
+
+        @Override
+        public RawSnapshot next() throws IOException {
+            if (this.remaining == 0 && !this.readBlock()) {
+                return null;
+            }
+            this.remaining -= 1;
+            String id = this.column(0).readUTF();
+            UUID playerUuid = new UUID(this.column(1).readLong(), this.column(1).readLong());
+            String playerName = this.column(2).readUTF();
+            Snapshot.Event event = ExportFormat.event(this.column(3).readUTF(), this.column(4).readUTF(),
+                    this.column(5).readUTF(), this.column(6).readUTF());
+            Instant time = Instant.ofEpochMilli(this.column(7).readLong());
+            String dimension = this.column(8).readUTF();
+            Vec3 position = new Vec3(this.column(9).readDouble(), this.column(10).readDouble(), this.column(11).readDouble());
+            this.column(12).readInt();
+            byte[] items = new byte[this.column(13).readInt()];
+            this.column(13).readFully(items);
+            Snapshot header = new Snapshot(id, event, playerUuid, playerName, time, ExportFormat.level(dimension), position, SnapshotContents.EMPTY);
+            return new RawSnapshot(header, SnapshotBinaryFormat.decodeRawItems(items));
+        }
+
+        private DataInputStream column(int index) {
+            return this.columns.get(index);
+        }
+
+        private boolean readBlock() throws IOException {
+            if (this.ended) {
+                return false;
+            }
+            int rows = this.in.readInt();
+            if (rows == 0) {
+                this.ended = true;
+                return false;
+            }
+            this.columns.clear();
+            for (int i = 0; i < this.columnCount; i += 1) {
+                byte[] bytes = new byte[this.in.readInt()];
+                this.in.readFully(bytes);
+                this.columns.add(new DataInputStream(new ByteArrayInputStream(bytes)));
+            }
+            this.remaining = rows;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.misode.invrestore.tool;
+
+import io.github.misode.invrestore.data.RawSnapshot;
+import io.github.misode.invrestore.data.Snapshot;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.Identifier;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * File formats of the offline export. Both are written and read one snapshot
+ * at a time, so exports of any size can be streamed.
+ */
+public enum ExportFormat {
+    /** One JSON object per line, with the items as SNBT */
+    NDJSON,
+    /** Gzipped blocks of snapshots, stored column by column */
+    COLUMNAR;
+
+    public static ExportFormat byName(String name) {
+        try {
+            return ExportFormat.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown format " + name + ", expected ndjson or columnar");
+        }
+    }
+
+    public SnapshotWriter writer(OutputStream out) throws IOException {
+        return switch (this) {
+            case NDJSON -> new NdjsonFormat.Writer(out);
+            case COLUMNAR -> new ColumnarFormat.Writer(out);
+        };
+    }
+
+    public SnapshotReader reader(InputStream in) throws IOException {
+        return switch (this) {
+            case NDJSON -> new NdjsonFormat.Reader(in);
+            case COLUMNAR -> new ColumnarFormat.Reader(in);
+        };
+    }
+
+    public interface SnapshotWriter extends Closeable {
+        void write(RawSnapshot snapshot) throws IOException;
+    }
+
+    public interface SnapshotReader extends Closeable {
+        /** Returns the next snapshot, or {@code null} at the end of the file */
+        @Nullable RawSnapshot next() throws IOException;
+    }
+
+    static String eventType(Snapshot.Event event) {
+        return Objects.requireNonNull(Snapshot.EventType.REGISTRY.getKey(event.getType())).toString();
+    }
+
+    /**
+     * Creates an event from its type and details. Only deaths have a message
+     * and only level changes have an origin and destination.
+     */
+    static Snapshot.Event event(String type, String message, String origin, String destination) throws IOException {
+        Snapshot.EventType<?> eventType;
+        try {
+            eventType = SnapshotFilter.parseEventType(type);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (eventType == Snapshot.Event.DEATH) {
+            return new Snapshot.DeathEvent(message);
+        } else if (eventType == Snapshot.Event.LEVEL_CHANGE) {
+            return new Snapshot.LevelChangeEvent(level(origin), level(destination));
+        } else if (eventType == Snapshot.Event.JOIN) {
+            return Snapshot.JoinEvent.INSTANCE;
+        } else if (eventType == Snapshot.Event.DISCONNECT) {
+            return Snapshot.DisconnectEvent.INSTANCE;
+        } else if (eventType == Snapshot.Event.AUTO_SAVE) {
+            return Snapshot.AutoSaveEvent.INSTANCE;
+        }
+        throw new IOException("Unsupported event type " + type);
+    }
+
+    static String eventMessage(Snapshot.Event event) {
+        return event instanceof Snapshot.DeathEvent death ? death.deathMessage() : "";
+    }
+
+    static String eventOrigin(Snapshot.Event event) {
+        return event instanceof Snapshot.LevelChangeEvent change ? change.origin().identifier().toString() : "";
+    }
+
+    static String eventDestination(Snapshot.Event event) {
+        return event instanceof Snapshot.LevelChangeEvent change ? change.destination().identifier().toString() : "";
+    }
+
+    static ResourceKey<Level> level(String id) throws IOException {
+        Identifier identifier = Identifier.tryParse(id);
+        if (identifier == null) {
+            throw new IOException("Invalid dimension " + id);
+        }
+        return ResourceKey.create(Registries.DIMENSION, identifier);
+    }
+}
@@ -0,0 +1,247 @@
+package io.github.misode.invrestore.tool;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import io.github.misode.invrestore.data.*;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.server.Bootstrap;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Exports the snapshots of a world to a file and imports them again, without
+ * a running server. Run it with {@code ./gradlew invrestoreTool --args="..."}.
+ * The items are copied as they are stored, so they are not upgraded or
+ * validated on the way.
+ */
+public class InvRestoreTool {
+    private static final String USAGE = """
+            Usage: export <world> <file> [options]
+                   import <world> <file> [options]
+            Options:
+              --format ndjson|columnar    file format, defaults to ndjson
+              --backend segments|mvstore  storage backend to import into, defaults to segments
+              --player <name or uuid>     only snapshots of this player
+              --event <type>              only snapshots of this event type, can be repeated
+              --from <time>               only snapshots at or after this time
+              --to <time>                 only snapshots at or before this time
+              --latest                    only the latest snapshot of each player (export only)
+            Times are ISO-8601 instants like 2025-01-31T18:00:00Z, or dates like 2025-01-31.""";
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        // The event types are registered when the events are first used
+        Objects.requireNonNull(Snapshot.Event.DEATH);
+        RegistryOps<Tag> ops = RegistryAccess.fromRegistryOfRegistries(BuiltInRegistries.REGISTRY).createSerializationContext(NbtOps.INSTANCE);
+        SnapshotFilter filter;
+        try {
+            filter = options.filter();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        try {
+            if (options.command.equals("export")) {
+                export(options, filter, ops);
+            } else {
+                importSnapshots(options, filter, ops);
+            }
+        } catch (IOException e) {
+            InvRestore.LOGGER.error("Failed to {} snapshots", options.command, e);
+            System.exit(1);
+        }
+    }
+
+    private static void export(Options options, SnapshotFilter filter, RegistryOps<Tag> ops) throws IOException {
+        int[] count = {0};
+        try (ExportFormat.SnapshotWriter writer = options.format.writer(new BufferedOutputStream(Files.newOutputStream(options.file)))) {
+            if (options.latest) {
+                Map<UUID, RawSnapshot> latest = new HashMap<>();
+                InvRestoreDatabase.forEachRaw(options.world, ops, snapshot -> {
+                    if (filter.test(snapshot.header())) {
+                        latest.merge(snapshot.header().playerUuid(), snapshot,
+                                (a, b) -> a.header().time().isAfter(b.header().time()) ? a : b);
+                    }
+                });
+                for (RawSnapshot snapshot : latest.values()) {
+                    writer.write(snapshot);
+                    count[0] += 1;
+                }
+            } else {
+                InvRestoreDatabase.forEachRaw(options.world, ops, snapshot -> {
+                    if (filter.test(snapshot.header())) {
+                        writer.write(snapshot);
+                        count[0] += 1;
+                    }
+                });
+            }
+        }
+        InvRestore.LOGGER.info("Exported {} snapshots to {}", count[0], options.file);
+    }
+
+    private static void importSnapshots(Options options, SnapshotFilter filter, RegistryOps<Tag> ops) throws IOException {
+        try (FileChannel lockFile = FileChannel.open(options.world.resolve("session.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = tryLock(lockFile)) {
+            if (lock == null) {
+                throw new IOException("The world " + options.world + " is in use, stop the server before importing");
+            }
+            // Snapshots that are already in the world are skipped, so the same file can be imported twice
+            Set<String> ids = new HashSet<>();
+            InvRestoreDatabase.forEachRaw(options.world, ops, snapshot -> ids.add(snapshot.header().id()));
+            Path directory = options.world.resolve("data").resolve(InvRestoreDatabase.DIRECTORY_NAME);
+            SnapshotStore store = switch (options.backend) {
+                case SEGMENTS -> {
+                    SnapshotSegments segments = new SnapshotSegments(directory);
+                    segments.openForAppend();
+                    yield segments;
+                }
+                case MVSTORE -> {
+                    MVSnapshotStore mvStore = new MVSnapshotStore(directory);
+                    mvStore.openForAppend();
+                    yield mvStore;
+                }
+            };
+            int count = 0;
+            int skipped = 0;
+            List<Snapshot> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            try (ExportFormat.SnapshotReader reader = options.format.reader(new BufferedInputStream(Files.newInputStream(options.file)))) {
+                RawSnapshot snapshot;
+                while ((snapshot = reader.next()) != null) {
+                    if (!filter.test(snapshot.header())) {
+                        continue;
+                    }
+                    if (!ids.add(snapshot.header().id())) {
+                        skipped += 1;
+                        continue;
+                    }
+                    batch.add(snapshot.header().withContents(contents(snapshot.items(), options.backend, ops)));
+                    if (batch.size() >= IMPORT_BATCH_SIZE) {
+                        store.write(batch, List.of(), ops, InvRestoreConfig.Storage.DEFAULT);
+                        count += batch.size();
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    store.write(batch, List.of(), ops, InvRestoreConfig.Storage.DEFAULT);
+                    count += batch.size();
+                }
+            } finally {
+                store.close();
+            }
+            InvRestore.LOGGER.info("Imported {} snapshots into {}, skipped {} that already exist", count, directory, skipped);
+        }
+    }
+
+    /** Null when another process holds the lock, like a running server */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /** Keeps the stored items as they are, the MVStore backend copies undecoded NBT over */
+    private static SnapshotContents contents(RawSnapshot.Items items, InvRestoreConfig.Backend backend, RegistryOps<Tag> ops) throws IOException {
+        return switch (backend) {
+            case SEGMENTS -> SnapshotContents.binary(items.stackCount(), SnapshotBinaryFormat.encodeRawItems(items), ops, null);
+            case MVSTORE -> SnapshotContents.CODEC.parse(ops, items.toNbt()).getOrThrow(IOException::new);
+        };
+    }
+
+    private static final class Options {
+        private String command;
+        private Path world;
+        private Path file;
+        private ExportFormat format = ExportFormat.NDJSON;
+        private InvRestoreConfig.Backend backend = InvRestoreConfig.Backend.SEGMENTS;
+        private String player;
+        private final List<String> events = new ArrayList<>();
+        private String from;
+        private String to;
+        private boolean latest = false;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            List<String> positional = new ArrayList<>();
+            for (int i = 0; i < args.length; i += 1) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    positional.add(arg);
+                    continue;
+                }
+                if (arg.equals("--latest")) {
+                    options.latest = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--format" -> options.format = ExportFormat.byName(value);
+                    case "--backend" -> options.backend = parseBackend(value);
+                    case "--player" -> options.player = value;
+                    case "--event" -> options.events.add(value);
+                    case "--from" -> options.from = value;
+                    case "--to" -> options.to = value;
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (positional.size() != 3 || !positional.get(0).equals("export") && !positional.get(0).equals("import")) {
+                throw new IllegalArgumentException("Expected export or import, a world folder and a file");
+            }
+            options.command = positional.get(0);
+            options.world = Path.of(positional.get(1));
+            options.file = Path.of(positional.get(2));
+            if (options.latest && options.command.equals("import")) {
+                throw new IllegalArgumentException("--latest can only be used with export");
+            }
+            if (!Files.isDirectory(options.world)) {
+                throw new IllegalArgumentException("World folder " + options.world + " doesn't exist");
+            }
+            return options;
+        }
+
+        private static InvRestoreConfig.Backend parseBackend(String value) {
+            try {
+                return InvRestoreConfig.Backend.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown backend " + value + ", expected segments or mvstore");
+            }
+        }
+
+        /** Parsed after the bootstrap, since the event types are looked up in their registry */
+        private SnapshotFilter filter() {
+            Set<Snapshot.EventType<?>> eventTypes = new HashSet<>();
+            this.events.forEach(event -> eventTypes.add(SnapshotFilter.parseEventType(event)));
+            return new SnapshotFilter(Optional.ofNullable(this.player), eventTypes,
+                    Optional.ofNullable(this.from).map(SnapshotFilter::parseTime),
+                    Optional.ofNullable(this.to).map(SnapshotFilter::parseTime));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.github.misode.invrestore.tool;
+
+import com.google.gson.*;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import io.github.misode.invrestore.data.RawSnapshot;
+import io.github.misode.invrestore.data.Snapshot;
+import io.github.misode.invrestore.data.SnapshotContents;
+import net.minecraft.nbt.Tag;
+import net.minecraft.nbt.TagParser;
+import net.minecraft.world.phys.Vec3;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One snapshot per line as a JSON object. The header fields are plain JSON
+ * values, the items are listed per slot as SNBT strings, exactly as they are
+ * stored, so they can be imported again without any loss.
+ */
+final class NdjsonFormat {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final List<String> LISTS = List.of("inventory", "armor", "offhand", "ender_chest");
+
+    private NdjsonFormat() {}
+
+    static final class Writer implements ExportFormat.SnapshotWriter {
+        private final BufferedWriter out;
+
+        Writer(OutputStream out) {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void write(RawSnapshot snapshot) throws IOException {
+            Snapshot header = snapshot.header();
+            JsonObject json = new JsonObject();
+            json.addProperty("id", header.id());
+            json.addProperty("event", ExportFormat.eventType(header.event()));
+            switch (header.event()) {
+                case Snapshot.DeathEvent death -> json.addProperty("death_message", death.deathMessage());
+                case Snapshot.LevelChangeEvent change -> {
+                    json.addProperty("origin", change.origin().identifier().toString());
+                    json.addProperty("destination", change.destination().identifier().toString());
+                }
+                default -> {}
+            }
+            json.addProperty("player_uuid", header.playerUuid().toString());
+            json.addProperty("player_name", header.playerName());
+            json.addProperty("time", header.time().toString());
+            json.addProperty("dimension", header.dimension().identifier().toString());
+            JsonArray position = new JsonArray();
+            position.add(header.position().x);
+            position.add(header.position().y);
+            position.add(header.position().z);
+            json.add("position", position);
+            json.addProperty("stack_count", snapshot.items().stackCount());
+            List<List<Tag>> lists = snapshot.items().lists();
+            for (int l = 0; l < LISTS.size(); l += 1) {
+                JsonArray slots = new JsonArray();
+                List<Tag> items = lists.get(l);
+                for (int i = 0; i < items.size(); i += 1) {
+                    if (items.get(i) != null) {
+                        JsonObject slot = new JsonObject();
+                        slot.addProperty("slot", i);
+                        slot.addProperty("item", items.get(i).toString());
+                        slots.add(slot);
+                    }
+                }
+                json.add(LISTS.get(l), slots);
+            }
+            GSON.toJson(json, this.out);
+            this.out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+
+    static final class Reader implements ExportFormat.SnapshotReader {
+        private final BufferedReader in;
+        private int line = 0;
+
+        Reader(InputStream in) {
+            this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public RawSnapshot next() throws IOException {
+            String line;
+            do {
+                line = this.in.readLine();
+                this.line += 1;
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isBlank());
+            try {
+                return parse(JsonParser.parseString(line).getAsJsonObject());
+            } catch (IOException | RuntimeException e) {
+                throw new IOException("Invalid snapshot on line " + this.line + ": " + e.getMessage(), e);
+            }
+        }
+
+        private static RawSnapshot parse(JsonObject json) throws IOException {
+            Snapshot.Event event = ExportFormat.event(string(json, "event"), optionalString(json, "death_message"),
+                    optionalString(json, "origin"), optionalString(json, "destination"));
+            JsonArray position = json.getAsJsonArray("position");
+            Snapshot header;
+            try {
+                header = new Snapshot(string(json, "id"), event, UUID.fromString(string(json, "player_uuid")),
+                        string(json, "player_name"), Instant.parse(string(json, "time")), ExportFormat.level(string(json, "dimension")),
+                        new Vec3(position.get(0).getAsDouble(), position.get(1).getAsDouble(), position.get(2).getAsDouble()),
+                        SnapshotContents.EMPTY);
+            } catch (DateTimeParseException e) {
+                throw new IOException("Invalid time " + string(json, "time"));
+            }
+            RawSnapshot.Items items = RawSnapshot.Items.empty();
+            List<List<Tag>> lists = items.lists();
+            for (int l = 0; l < LISTS.size(); l += 1) {
+                JsonArray slots = json.has(LISTS.get(l)) ? json.getAsJsonArray(LISTS.get(l)) : new JsonArray();
+                for (JsonElement element : slots) {
+                    JsonObject slot = element.getAsJsonObject();
+                    int index = slot.get("slot").getAsInt();
+                    if (index < 0 || index >= lists.get(l).size()) {
+                        throw new IOException("Invalid slot " + index + " in " + LISTS.get(l));
+                    }
+                    try {
+                        lists.get(l).set(index, TagParser.parseCompoundFully(string(slot, "item")));
+                    } catch (CommandSyntaxException e) {
+                        throw new IOException("Invalid item in slot " + index + " of " + LISTS.get(l) + ": " + e.getMessage());
+                    }
+                }
+            }
+            return new RawSnapshot(header, items);
+        }
+
+        private static String string(JsonObject json, String key) throws IOException {
+            JsonElement element = json.get(key);
+            if (element == null || !element.isJsonPrimitive()) {
+                throw new IOException("Missing " + key);
+            }
+            return element.getAsString();
+        }
+
+        private static String optionalString(JsonObject json, String key) {
+            JsonElement element = json.get(key);
+            return element == null || !element.isJsonPrimitive() ? "" : element.getAsString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.misode.invrestore.tool;
+
+import io.github.misode.invrestore.InvRestore;
+import io.github.misode.invrestore.data.Snapshot;
+import net.minecraft.resources.Identifier;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Selects snapshots by player, event type and time range. The player can be
+ * a name or a UUID, the time range is inclusive on both ends.
+ */
+public record SnapshotFilter(Optional<String> player, Set<Snapshot.EventType<?>> eventTypes, Optional<Instant> from, Optional<Instant> to) {
+    public boolean test(Snapshot snapshot) {
+        if (this.player.isPresent() && !this.player.get().equalsIgnoreCase(snapshot.playerName())
+                && !this.player.get().equalsIgnoreCase(snapshot.playerUuid().toString())) {
+            return false;
+        }
+        if (!this.eventTypes.isEmpty() && !this.eventTypes.contains(snapshot.event().getType())) {
+            return false;
+        }
+        if (this.from.isPresent() && snapshot.time().isBefore(this.from.get())) {
+            return false;
+        }
+        return this.to.isEmpty() || !snapshot.time().isAfter(this.to.get());
+    }
+
+    /** Parses an ISO-8601 instant, or a date which stands for midnight UTC */
+    public static Instant parseTime(String value) {
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+            } catch (DateTimeParseException ignored) {
+                throw new IllegalArgumentException("Invalid time " + value + ", expected for example 2025-01-31 or 2025-01-31T18:00:00Z");
+            }
+        }
+    }
+
+    /** Parses an event type like {@code death}, the namespace is optional */
+    public static Snapshot.EventType<?> parseEventType(String value) {
+        Identifier id = value.contains(":") ? Identifier.tryParse(value) : InvRestore.id(value);
+        Snapshot.EventType<?> type = id == null ? null : Snapshot.EventType.REGISTRY.getValue(id);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown event type " + value);
+        }
+        return type;
+    }
+}
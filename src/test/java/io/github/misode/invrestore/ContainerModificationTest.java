@@ -0,0 +1,70 @@
+package io.github.misode.invrestore;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.SimpleContainer;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.inventory.AbstractContainerMenu;
+import net.minecraft.world.inventory.Slot;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContainerModificationTest {
+    @BeforeAll
+    static void setup() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    @Test
+    void syncingUnchangedSlotsKeepsTheStamp() {
+        SimpleContainer container = new SimpleContainer(1);
+        container.setItem(0, new ItemStack(Items.BREAD, 4));
+        AbstractContainerMenu menu = menu(container);
+        menu.broadcastChanges();
+        long synced = modification(container);
+
+        menu.broadcastChanges();
+        assertEquals(synced, modification(container));
+    }
+
+    @Test
+    void syncingStacksChangedInPlaceMarksTheContainer() {
+        SimpleContainer container = new SimpleContainer(1);
+        container.setItem(0, new ItemStack(Items.BREAD, 4));
+        AbstractContainerMenu menu = menu(container);
+        menu.broadcastChanges();
+        long synced = modification(container);
+
+        // Like eating, this doesn't go through the container
+        container.getItem(0).shrink(1);
+        menu.broadcastChanges();
+        assertNotEquals(synced, modification(container));
+    }
+
+    private static AbstractContainerMenu menu(SimpleContainer container) {
+        return new AbstractContainerMenu(null, 0) {
+            {
+                this.addSlot(new Slot(container, 0, 0, 0));
+            }
+
+            @Override
+            public ItemStack quickMoveStack(Player player, int slot) {
+                return ItemStack.EMPTY;
+            }
+
+            @Override
+            public boolean stillValid(Player player) {
+                return true;
+            }
+        };
+    }
+
+    private static long modification(SimpleContainer container) {
+        return ((InvRestoreModificationTracker) container).inv_restore$getModification();
+    }
+}
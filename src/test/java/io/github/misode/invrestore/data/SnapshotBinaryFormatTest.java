@@ -0,0 +1,142 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.InvRestore;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.github.misode.invrestore.data.TestSnapshots.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotBinaryFormatTest {
+    private static RegistryOps<Tag> ops;
+
+    @BeforeAll
+    static void setup() {
+        ops = TestSnapshots.bootstrap();
+    }
+
+    @Test
+    void roundTripsHeadersAndItems() throws IOException {
+        List<Snapshot> snapshots = List.of(
+                join("a", PLAYER, 1),
+                death("b", PLAYER, 2),
+                levelChange("c", OTHER_PLAYER, 3));
+        SnapshotBinaryFormat.Writer writer = new SnapshotBinaryFormat.Writer(ops);
+        for (Snapshot snapshot : snapshots) {
+            writer.write(snapshot);
+        }
+
+        List<Snapshot> decoded = read(writer.toByteArray());
+        assertEquals(snapshots.size(), decoded.size());
+        for (int i = 0; i < snapshots.size(); i += 1) {
+            assertSnapshot(snapshots.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    void roundTripsDeltas() throws IOException {
+        Snapshot base = join("a", PLAYER, 1);
+        Snapshot changed = death("b", PLAYER, 2);
+        SnapshotBinaryFormat.Writer writer = new SnapshotBinaryFormat.Writer(ops);
+        writer.write(base);
+        writer.writeDelta(changed, SnapshotDelta.between(base.contents().read(), changed.contents().read()));
+
+        SnapshotBinaryFormat.Reader reader = new SnapshotBinaryFormat.Reader(writer.toByteArray());
+        SnapshotBinaryFormat.Entry first = reader.next();
+        SnapshotBinaryFormat.Entry second = reader.next();
+        assertFalse(reader.hasNext());
+        assertFalse(first.delta());
+        assertTrue(second.delta());
+        SnapshotContents baseContents = SnapshotContents.binary(first.stackCount(), first.contents(), ops, null);
+        SnapshotContents contents = SnapshotContents.binary(second.stackCount(), second.contents(), ops, baseContents);
+        assertItems(changed.contents().read(), contents.read());
+    }
+
+    @Test
+    void rawItemsKeepTheEncodedBytes() throws IOException {
+        byte[] encoded = SnapshotBinaryFormat.encodeItems(items(7), ops);
+        RawSnapshot.Items raw = SnapshotBinaryFormat.decodeRawItems(encoded);
+        assertEquals(items(7).stackCount(), raw.stackCount());
+        assertArrayEquals(encoded, SnapshotBinaryFormat.encodeRawItems(raw));
+    }
+
+    @Test
+    void reportsUnknownEventTypesPerRecord() throws IOException {
+        SnapshotBinaryFormat.Writer writer = new SnapshotBinaryFormat.Writer(ops);
+        writer.write(join("a", PLAYER, 1));
+        writer.write(join("b", PLAYER, 2));
+        byte[] frame = writer.toByteArray();
+        // The event type is the first string in the table, make it unknown
+        replace(frame, InvRestore.id("join").toString(), InvRestore.id("jump").toString());
+
+        SnapshotBinaryFormat.Reader reader = new SnapshotBinaryFormat.Reader(frame);
+        assertNotNull(reader.next().error());
+        assertNotNull(reader.next().error());
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    void upgradesItemsFromOlderDataVersions() throws IOException {
+        // A damaged sword as it was stored before item components
+        CompoundTag legacy = new CompoundTag();
+        legacy.putString("id", "minecraft:diamond_sword");
+        legacy.putByte("Count", (byte) 1);
+        CompoundTag tag = new CompoundTag();
+        tag.putInt("Damage", 5);
+        legacy.put("tag", tag);
+        RawSnapshot.Items raw = RawSnapshot.Items.empty();
+        raw.inventory().set(0, legacy);
+        SnapshotContents contents = SnapshotContents.binary(1, SnapshotBinaryFormat.encodeRawItems(raw), ops, null);
+        SnapshotBinaryFormat.Writer writer = new SnapshotBinaryFormat.Writer(ops);
+        writer.write(join("a", PLAYER, 1).withContents(contents));
+        byte[] frame = writer.toByteArray();
+        // The data version follows the format version, this is the one of 1.20.4
+        ByteBuffer.wrap(frame).putInt(4, 3700);
+
+        SnapshotBinaryFormat.Entry entry = new SnapshotBinaryFormat.Reader(frame).next();
+        ItemStack sword = SnapshotBinaryFormat.decodeItems(entry.contents(), ops).inventory().get(0);
+        assertTrue(sword.is(Items.DIAMOND_SWORD));
+        assertEquals(5, sword.getDamageValue());
+    }
+
+    @Test
+    void rejectsNewerVersions() {
+        byte[] frame = {0, 0, 0, (byte) (SnapshotBinaryFormat.VERSION + 1), 0, 0};
+        assertThrows(IOException.class, () -> new SnapshotBinaryFormat.Reader(frame));
+    }
+
+    private static List<Snapshot> read(byte[] frame) throws IOException {
+        List<Snapshot> result = new ArrayList<>();
+        SnapshotBinaryFormat.Reader reader = new SnapshotBinaryFormat.Reader(frame);
+        while (reader.hasNext()) {
+            SnapshotBinaryFormat.Entry entry = reader.next();
+            assertNull(entry.error());
+            result.add(entry.snapshot().withContents(SnapshotContents.binary(entry.stackCount(), entry.contents(), ops, null)));
+        }
+        return result;
+    }
+
+    private static void replace(byte[] bytes, String target, String replacement) {
+        byte[] from = target.getBytes(StandardCharsets.UTF_8);
+        byte[] to = replacement.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i + from.length <= bytes.length; i += 1) {
+            if (Arrays.equals(bytes, i, i + from.length, from, 0, from.length)) {
+                System.arraycopy(to, 0, bytes, i, to.length);
+                return;
+            }
+        }
+        fail("Missing " + target);
+    }
+}
@@ -0,0 +1,154 @@
+package io.github.misode.invrestore.data;
+
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static io.github.misode.invrestore.data.TestSnapshots.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotJournalTest {
+    private static RegistryOps<Tag> ops;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void setup() {
+        ops = TestSnapshots.bootstrap();
+    }
+
+    @Test
+    void replaysAddedSnapshots() throws IOException {
+        List<Snapshot> snapshots = List.of(join("a", PLAYER, 1), death("b", PLAYER, 2), levelChange("c", OTHER_PLAYER, 3));
+        SnapshotJournal journal = this.open();
+        snapshots.forEach(journal::add);
+        journal.flush();
+        journal.close();
+
+        List<Snapshot> replayed = this.replay();
+        assertEquals(snapshots.size(), replayed.size());
+        for (int i = 0; i < snapshots.size(); i += 1) {
+            assertSnapshot(snapshots.get(i), replayed.get(i));
+        }
+    }
+
+    @Test
+    void replaysRemovals() throws IOException {
+        SnapshotJournal journal = this.open();
+        journal.add(join("a", PLAYER, 1));
+        journal.add(join("b", PLAYER, 2));
+        journal.flush();
+        journal.remove("a");
+        journal.add(join("c", PLAYER, 3));
+        journal.remove("c");
+        journal.flush();
+        journal.close();
+
+        assertEquals(List.of("b"), ids(this.replay()));
+    }
+
+    @Test
+    void ignoresTornRecordAtTheEnd() throws IOException {
+        SnapshotJournal journal = this.open();
+        journal.add(join("a", PLAYER, 1));
+        journal.flush();
+        long complete = Files.size(this.path());
+        journal.add(join("b", PLAYER, 2));
+        journal.flush();
+        journal.close();
+        truncate(this.path(), Files.size(this.path()) - 5);
+
+        journal = new SnapshotJournal(this.directory, ops);
+        assertEquals(List.of("a"), ids(journal.load()));
+        assertEquals(complete, Files.size(this.path()));
+        // New records are appended after the last valid one
+        journal.add(join("c", PLAYER, 3));
+        journal.flush();
+        journal.close();
+        assertEquals(List.of("a", "c"), ids(this.replay()));
+    }
+
+    @Test
+    void ignoresTornRecordHeaderAtTheEnd() throws IOException {
+        SnapshotJournal journal = this.open();
+        journal.add(join("a", PLAYER, 1));
+        journal.flush();
+        journal.close();
+        Files.write(this.path(), new byte[]{1, 0, 0}, StandardOpenOption.APPEND);
+
+        assertEquals(List.of("a"), ids(this.replay()));
+    }
+
+    @Test
+    void ignoresCorruptedRecordAtTheEnd() throws IOException {
+        SnapshotJournal journal = this.open();
+        journal.add(join("a", PLAYER, 1));
+        journal.flush();
+        long complete = Files.size(this.path());
+        journal.add(join("b", PLAYER, 2));
+        journal.flush();
+        journal.close();
+        // Flip a byte in the payload of the last record, its checksum no longer matches
+        try (RandomAccessFile file = new RandomAccessFile(this.path().toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        assertEquals(List.of("a"), ids(this.replay()));
+        assertEquals(complete, Files.size(this.path()));
+    }
+
+    @Test
+    void checkpointKeepsUnsavedSnapshots() throws IOException {
+        SnapshotJournal journal = this.open();
+        journal.add(join("a", PLAYER, 1));
+        journal.add(join("b", PLAYER, 2));
+        journal.flush();
+        journal.checkpoint(List.of("a"));
+        journal.add(join("c", PLAYER, 3));
+        journal.flush();
+        journal.close();
+
+        assertEquals(List.of("b", "c"), ids(this.replay()));
+    }
+
+    private SnapshotJournal open() throws IOException {
+        SnapshotJournal journal = new SnapshotJournal(this.directory, ops);
+        journal.load();
+        return journal;
+    }
+
+    private List<Snapshot> replay() throws IOException {
+        SnapshotJournal journal = new SnapshotJournal(this.directory, ops);
+        List<Snapshot> result = journal.load();
+        journal.close();
+        return result;
+    }
+
+    private Path path() {
+        return this.directory.resolve(SnapshotJournal.FILE_NAME);
+    }
+
+    private static List<String> ids(List<Snapshot> snapshots) {
+        return snapshots.stream().map(Snapshot::id).toList();
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package io.github.misode.invrestore.data;
+
+import io.github.misode.invrestore.config.InvRestoreConfig;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.RegistryOps;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import static io.github.misode.invrestore.data.TestSnapshots.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotSegmentsTest {
+    private static final int MAGIC = 0x49525347;
+    private static final int VERSION = 1;
+    private static RegistryOps<Tag> ops;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void setup() {
+        ops = TestSnapshots.bootstrap();
+    }
+
+    @Test
+    void roundTripsBinaryFrames() throws IOException {
+        List<Snapshot> snapshots = List.of(join("a", PLAYER, 1), death("b", PLAYER, 2), levelChange("c", OTHER_PLAYER, 3));
+        write(snapshots, InvRestoreConfig.Storage.DEFAULT);
+
+        assertSnapshots(snapshots, load());
+    }
+
+    @Test
+    void roundTripsNbtFramesWithDeltas() throws IOException {
+        List<Snapshot> snapshots = List.of(join("a", PLAYER, 1), death("b", PLAYER, 2), join("c", PLAYER, 3));
+        InvRestoreConfig.Storage defaults = InvRestoreConfig.Storage.DEFAULT;
+        write(snapshots, new InvRestoreConfig.Storage(defaults.backend(), InvRestoreConfig.Format.NBT, defaults.compression(),
+                defaults.zstdDictionary(), true, defaults.keyframeInterval(), defaults.archiveAfterDays()));
+
+        assertSnapshots(snapshots, load());
+    }
+
+    @Test
+    void roundTripsEveryCompression() throws IOException {
+        InvRestoreConfig.Storage defaults = InvRestoreConfig.Storage.DEFAULT;
+        List<Snapshot> expected = new ArrayList<>();
+        SnapshotSegments store = new SnapshotSegments(this.directory);
+        store.load(ops, InvRestoreConfig.Loading.DEFAULT);
+        for (InvRestoreConfig.Compression compression : InvRestoreConfig.Compression.values()) {
+            Snapshot snapshot = join(compression.getSerializedName(), PLAYER, expected.size());
+            store.write(List.of(snapshot), List.of(), ops, new InvRestoreConfig.Storage(defaults.backend(), defaults.format(), compression,
+                    defaults.zstdDictionary(), defaults.deltaEncoding(), defaults.keyframeInterval(), defaults.archiveAfterDays()));
+            expected.add(snapshot);
+        }
+        store.close();
+
+        assertSnapshots(expected, load());
+    }
+
+    @Test
+    void keepsRemovalsAfterRestart() throws IOException {
+        Snapshot a = join("a", PLAYER, 1);
+        Snapshot b = join("b", PLAYER, 2);
+        Snapshot c = join("c", OTHER_PLAYER, 3);
+        SnapshotSegments store = new SnapshotSegments(this.directory);
+        store.load(ops, InvRestoreConfig.Loading.DEFAULT);
+        store.write(List.of(a, b), List.of(), ops, InvRestoreConfig.Storage.DEFAULT);
+        store.write(List.of(c), List.of("a"), ops, InvRestoreConfig.Storage.DEFAULT);
+        store.close();
+
+        assertSnapshots(List.of(b, c), load());
+        List<String> exported = new ArrayList<>();
+        new SnapshotSegments(this.directory).forEachRaw(ops, snapshot -> exported.add(snapshot.header().id()));
+        assertEquals(List.of("b", "c"), exported);
+    }
+
+    @Test
+    void ignoresTruncatedFrameAtTheEnd() throws IOException {
+        Snapshot a = join("a", PLAYER, 1);
+        SnapshotSegments store = new SnapshotSegments(this.directory);
+        store.load(ops, InvRestoreConfig.Loading.DEFAULT);
+        store.write(List.of(a), List.of(), ops, InvRestoreConfig.Storage.DEFAULT);
+        Path path = this.segment(0);
+        long complete = Files.size(path);
+        store.write(List.of(join("b", PLAYER, 2)), List.of(), ops, InvRestoreConfig.Storage.DEFAULT);
+        store.close();
+        truncate(path, Files.size(path) - 10);
+
+        assertSnapshots(List.of(a), load());
+        // The torn frame is cut off, so frames appended later can be read
+        assertEquals(complete, Files.size(path));
+    }
+
+    @Test
+    void ignoresTruncatedLengthAtTheEnd() throws IOException {
+        Snapshot a = join("a", PLAYER, 1);
+        write(List.of(a), InvRestoreConfig.Storage.DEFAULT);
+        Path path = this.segment(0);
+        Files.write(path, new byte[]{0, 0}, StandardOpenOption.APPEND);
+
+        assertSnapshots(List.of(a), load());
+    }
+
+    @Test
+    void rejectsWrongMagic() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(0x12345678);
+        out.writeInt(VERSION);
+        Files.write(this.segment(0), file.toByteArray());
+
+        assertThrows(IOException.class, this::load);
+    }
+
+    @Test
+    void rejectsOtherVersions() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION + 1);
+        Files.write(this.segment(0), file.toByteArray());
+
+        assertThrows(IOException.class, this::load);
+    }
+
+    @Test
+    void rejectsUnknownFrameFormat() throws IOException {
+        ByteArrayOutputStream file = header();
+        writeFrame(file, 7, gzip(new byte[]{1, 2, 3}));
+        Files.write(this.segment(0), file.toByteArray());
+
+        assertThrows(IOException.class, this::load);
+    }
+
+    @Test
+    void rejectsUnknownCompression() throws IOException {
+        ByteArrayOutputStream file = header();
+        writeFrame(file, 1, new byte[]{9, 1, 2, 3});
+        Files.write(this.segment(0), file.toByteArray());
+
+        assertThrows(IOException.class, this::load);
+    }
+
+    @Test
+    void rejectsInvalidFrameLength() throws IOException {
+        ByteArrayOutputStream file = header();
+        new DataOutputStream(file).writeInt(-5);
+        file.write(new byte[16]);
+        Files.write(this.segment(0), file.toByteArray());
+
+        assertThrows(IOException.class, this::load);
+    }
+
+    @Test
+    void rejectsCorruptedFrameData() throws IOException {
+        ByteArrayOutputStream file = header();
+        // Claims to be gzip compressed
+        writeFrame(file, 1, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        Files.write(this.segment(0), file.toByteArray());
+
+        assertThrows(IOException.class, this::load);
+    }
+
+    private void write(List<Snapshot> added, InvRestoreConfig.Storage storage) throws IOException {
+        SnapshotSegments store = new SnapshotSegments(this.directory);
+        store.load(ops, InvRestoreConfig.Loading.DEFAULT);
+        store.write(added, List.of(), ops, storage);
+        store.close();
+    }
+
+    private List<Snapshot> load() throws IOException {
+        SnapshotSegments store = new SnapshotSegments(this.directory);
+        List<Snapshot> result = store.load(ops, InvRestoreConfig.Loading.DEFAULT);
+        store.close();
+        return result;
+    }
+
+    private Path segment(int index) {
+        return this.directory.resolve(String.format(Locale.ROOT, "segment-%06d.dat", index));
+    }
+
+    private static void assertSnapshots(List<Snapshot> expected, List<Snapshot> actual) {
+        assertEquals(expected.stream().map(Snapshot::id).toList(), actual.stream().map(Snapshot::id).toList());
+        for (int i = 0; i < expected.size(); i += 1) {
+            assertSnapshot(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static ByteArrayOutputStream header() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        return file;
+    }
+
+    private static void writeFrame(ByteArrayOutputStream file, int format, byte[] data) throws IOException {
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(data.length + 1);
+        out.writeByte(format);
+        out.write(data);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+}
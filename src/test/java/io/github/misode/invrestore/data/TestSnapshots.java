@@ -0,0 +1,95 @@
+package io.github.misode.invrestore.data;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.NonNullList;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.core.component.DataComponents;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.Tag;
+import net.minecraft.network.chat.Component;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Snapshots with a few different events and items for the storage tests.
+ */
+final class TestSnapshots {
+    static final UUID PLAYER = new UUID(0L, 1L);
+    static final UUID OTHER_PLAYER = new UUID(0L, 2L);
+    private static boolean bootstrapped = false;
+
+    private TestSnapshots() {}
+
+    static synchronized RegistryOps<Tag> bootstrap() {
+        if (!bootstrapped) {
+            SharedConstants.tryDetectVersion();
+            Bootstrap.bootStrap();
+            // The event types are registered when the events are first used
+            Objects.requireNonNull(Snapshot.Event.DEATH);
+            bootstrapped = true;
+        }
+        return RegistryAccess.fromRegistryOfRegistries(BuiltInRegistries.REGISTRY).createSerializationContext(NbtOps.INSTANCE);
+    }
+
+    static Snapshot join(String id, UUID player, long seconds) {
+        return snapshot(id, Snapshot.JoinEvent.INSTANCE, player, seconds, items(seconds));
+    }
+
+    static Snapshot death(String id, UUID player, long seconds) {
+        return snapshot(id, new Snapshot.DeathEvent("Player fell from a high place"), player, seconds, items(seconds));
+    }
+
+    static Snapshot levelChange(String id, UUID player, long seconds) {
+        return snapshot(id, new Snapshot.LevelChangeEvent(Level.OVERWORLD, Level.NETHER), player, seconds, items(seconds));
+    }
+
+    static Snapshot snapshot(String id, Snapshot.Event event, UUID player, long seconds, SnapshotItems items) {
+        // Whole milliseconds, the stored time isn't more precise than that
+        return new Snapshot(id, event, player, "Player" + player.getLeastSignificantBits(), Instant.ofEpochSecond(1_735_689_600L + seconds),
+                Level.OVERWORLD, new Vec3(10.5, 64, -20.25), SnapshotContents.of(items));
+    }
+
+    /** Different items for every seed, with some named stacks and empty slots */
+    static SnapshotItems items(long seed) {
+        List<ItemStack> inventory = NonNullList.withSize(36, ItemStack.EMPTY);
+        inventory.set(0, new ItemStack(Items.DIAMOND_SWORD));
+        inventory.set(1, new ItemStack(Items.COBBLESTONE, 1 + (int) (seed % 64)));
+        ItemStack named = new ItemStack(Items.SHULKER_BOX);
+        named.set(DataComponents.CUSTOM_NAME, Component.literal("Box " + seed));
+        inventory.set(35, named);
+        List<ItemStack> armor = NonNullList.withSize(4, ItemStack.EMPTY);
+        armor.set(3, new ItemStack(Items.IRON_HELMET));
+        List<ItemStack> offhand = NonNullList.withSize(1, ItemStack.EMPTY);
+        offhand.set(0, new ItemStack(Items.TORCH, 16));
+        List<ItemStack> enderChest = NonNullList.withSize(27, ItemStack.EMPTY);
+        enderChest.set(13, new ItemStack(Items.ENDER_PEARL, 8));
+        return new SnapshotItems(inventory, armor, offhand, enderChest);
+    }
+
+    /** Compares everything but the contents, then the items slot by slot */
+    static void assertSnapshot(Snapshot expected, Snapshot actual) {
+        assertEquals(expected.withContents(SnapshotContents.EMPTY), actual.withContents(SnapshotContents.EMPTY));
+        assertEquals(expected.contents().stackCount(), actual.contents().stackCount());
+        assertItems(expected.contents().read(), actual.contents().read());
+    }
+
+    static void assertItems(SnapshotItems expected, SnapshotItems actual) {
+        assertTrue(ItemStack.listMatches(expected.inventory(), actual.inventory()), "inventory");
+        assertTrue(ItemStack.listMatches(expected.armor(), actual.armor()), "armor");
+        assertTrue(ItemStack.listMatches(expected.offhand(), actual.offhand()), "offhand");
+        assertTrue(ItemStack.listMatches(expected.enderChest(), actual.enderChest()), "ender chest");
+    }
+}